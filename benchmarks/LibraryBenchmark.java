@@ -0,0 +1,217 @@
+import java.util.*;
+import java.lang.management.*;
+
+/**
+ * Micro-benchmarks for the circulation operations of Library, at several
+ * catalog and member list sizes. Every operation is warmed up, then timed
+ * over several measurement rounds; the report gives the throughput in
+ * operations per second and the bytes allocated per operation.
+ *
+ * Compile and run from an empty scratch directory, since the library
+ * writes its snapshot and journals into the working directory:
+ * <pre>
+ *   javac -d classes ../src/*.java ../benchmarks/LibraryBenchmark.java
+ *   java -cp classes LibraryBenchmark [size ...]
+ * </pre>
+ * The default sizes are 1K, 10K, 100K and 1M books, with one member per
+ * ten books. Mutating operations go through the journal, so their
+ * throughput includes its fsyncs.
+ *
+ */
+public class LibraryBenchmark {
+  private static final int[] DEFAULT_SIZES = {1000, 10000, 100000, 1000000};
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int MEASURED_ROUNDS = 5;
+  private static final int OPERATIONS_PER_ROUND = 2000;
+  private static final int HOLD_DURATION = 30;
+  private Library library;
+  private int size;
+  private String[] bookIds;
+  private String[] memberIds;
+  private int next;
+
+  /*
+   * A single benchmarked operation. Before each round, prepare() is called
+   * untimed for every iteration so that the operation finds the books and
+   * members in the state it needs.
+   */
+  private abstract static class Operation {
+    void prepare(int iteration) {
+    }
+
+    abstract void run(int iteration);
+  }
+
+  /*
+   * Builds a library of the given number of books
+   */
+  private LibraryBenchmark(int size) {
+    this.size = size;
+    library = Library.instance();
+    library.catalog.clear();
+    library.memberList.clear();
+    bookIds = new String[size];
+    for (int index = 0; index < size; index++) {
+      bookIds[index] = "B" + index;
+      library.catalog.insertBook(new Book("Title " + index, "Author " + (index % 5000), bookIds[index]));
+    }
+    memberIds = new String[Math.max(1, size / 10)];
+    for (int index = 0; index < memberIds.length; index++) {
+      Member member = new Member("Member " + index, "Address " + index, "555-" + index);
+      library.memberList.insertMember(member);
+      memberIds[index] = member.getId();
+    }
+  }
+
+  /**
+   * Runs the benchmarks
+   * @param args the library sizes to benchmark; defaults to 1K to 1M
+   */
+  public static void main(String[] args) {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int index = 0; index < args.length; index++) {
+        sizes[index] = Integer.parseInt(args[index]);
+      }
+    }
+    System.out.printf("%-16s %10s %14s %14s%n", "operation", "books", "ops/s", "bytes/op");
+    for (int size : sizes) {
+      new LibraryBenchmark(size).runAll();
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Benchmarks every operation at the current size
+   */
+  private void runAll() {
+    measure("addBook", new Operation() {
+      void run(int iteration) {
+        library.addBook("New title " + iteration, "New author", "N" + size + "-" + (next++));
+      }
+    });
+    measure("addMember", new Operation() {
+      void run(int iteration) {
+        library.addMember("New member " + iteration, "Address", "Phone");
+      }
+    });
+    measure("issueBook", new Operation() {
+      void prepare(int iteration) {
+        library.returnBook(book(iteration));
+      }
+
+      void run(int iteration) {
+        library.issueBook(member(iteration), book(iteration));
+      }
+    });
+    measure("renewBook", new Operation() {
+      void prepare(int iteration) {
+        library.issueBook(member(iteration), book(iteration));
+      }
+
+      void run(int iteration) {
+        library.renewBook(book(iteration), member(iteration));
+      }
+    });
+    measure("placeHold", new Operation() {
+      void prepare(int iteration) {
+        library.issueBook(member(iteration), book(iteration));
+      }
+
+      void run(int iteration) {
+        library.placeHold(member(iteration + 1), book(iteration), HOLD_DURATION);
+      }
+    });
+    measure("returnBook", new Operation() {
+      void prepare(int iteration) {
+        library.issueBook(member(iteration), book(iteration));
+      }
+
+      void run(int iteration) {
+        library.returnBook(book(iteration));
+      }
+    });
+    measure("processHold", new Operation() {
+      void prepare(int iteration) {
+        library.issueBook(member(iteration), book(iteration));
+        library.placeHold(member(iteration + 1), book(iteration), HOLD_DURATION);
+      }
+
+      void run(int iteration) {
+        library.processHold(book(iteration));
+      }
+    });
+    final Calendar today = new GregorianCalendar();
+    measure("getTransactions", new Operation() {
+      void run(int iteration) {
+        for (Iterator iterator = library.getTransactions(member(iteration), today); iterator.hasNext(); ) {
+          iterator.next();
+        }
+      }
+    });
+    measure("save", 1, new Operation() {
+      void run(int iteration) {
+        Library.save();
+      }
+    });
+    measure("retrieve", 1, new Operation() {
+      void run(int iteration) {
+        Library.retrieve();
+        library.getAllBooks();
+        library.getAllMembers();
+      }
+    });
+  }
+
+  /*
+   * Picks the book used by an iteration
+   */
+  private String book(int iteration) {
+    return bookIds[iteration];
+  }
+
+  /*
+   * Picks the member used by an iteration
+   */
+  private String member(int iteration) {
+    return memberIds[iteration % memberIds.length];
+  }
+
+  /*
+   * Times an operation with the default number of calls per round; each
+   * call of a round works on a different book
+   */
+  private void measure(String name, Operation operation) {
+    measure(name, Math.min(OPERATIONS_PER_ROUND, size), operation);
+  }
+
+  /*
+   * Warms an operation up, then times it and reports the mean throughput
+   * and allocation of the measured rounds
+   */
+  private void measure(String name, int calls, Operation operation) {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long elapsed = 0;
+    long allocated = 0;
+    for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+      for (int iteration = 0; iteration < calls; iteration++) {
+        operation.prepare(iteration);
+      }
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int iteration = 0; iteration < calls; iteration++) {
+        operation.run(iteration);
+      }
+      long time = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+      if (round >= WARMUP_ROUNDS) {
+        elapsed += time;
+        allocated += bytes;
+      }
+    }
+    long operations = (long) calls * MEASURED_ROUNDS;
+    System.out.printf("%-16s %10d %14.1f %14d%n", name, size, operations * 1e9 / elapsed, allocated / operations);
+  }
+}
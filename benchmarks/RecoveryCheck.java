@@ -0,0 +1,85 @@
+import java.util.*;
+import java.io.*;
+
+/**
+ * Checks that journaled operations survive a crash. A child JVM performs
+ * operations and halts without saving; this JVM then retrieves the library
+ * and checks that every operation came back. This is done twice: once for
+ * a library that was never saved, and once for operations made after a
+ * save.
+ *
+ * Compile and run from an empty scratch directory, since the library
+ * writes its snapshot and journals into the working directory:
+ * <pre>
+ *   javac -d classes ../src/*.java ../benchmarks/RecoveryCheck.java
+ *   java -cp classes RecoveryCheck
+ * </pre>
+ * The exit status is 0 iff both checks pass.
+ *
+ */
+public class RecoveryCheck {
+  private static final int BOOKS = 100;
+
+  /**
+   * Runs the checks, or one of the crashing children
+   * @param args none, or the phase the child runs: "fresh" or "saved"
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      crash(args[0]);
+      return;
+    }
+    boolean passed = check("fresh", BOOKS) && check("saved", 2 * BOOKS);
+    System.out.println(passed ? "recovery OK" : "recovery FAILED");
+    System.exit(passed ? 0 : 1);
+  }
+
+  /*
+   * Performs the operations of a phase, then halts as a crash would: a
+   * fresh library that is never saved, or the library retrieved, saved
+   * and then changed
+   */
+  private static void crash(String phase) {
+    Library library;
+    int first;
+    if (phase.equals("fresh")) {
+      library = Library.instance();
+      first = 0;
+    } else {
+      library = Library.retrieve();
+      Library.save();
+      first = BOOKS;
+    }
+    Member member = library.addMember("Member " + phase, "Address", "Phone");
+    for (int index = first; index < first + BOOKS; index++) {
+      library.addBook("Title " + index, "Author", "B" + index);
+      if (index % 2 == 0) {
+        library.issueBook(member.getId(), "B" + index);
+      }
+    }
+    Runtime.getRuntime().halt(0);
+  }
+
+  /*
+   * Runs a crashing child, then checks the retrieved library
+   */
+  private static boolean check(String phase, int books) throws Exception {
+    Process child = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"), "RecoveryCheck", phase)
+        .inheritIO().start();
+    child.waitFor();
+    Library library = Library.retrieve();
+    if (library == null) {
+      System.out.println(phase + ": nothing retrieved");
+      return false;
+    }
+    int missing = 0;
+    for (int index = 0; index < books; index++) {
+      Book book = library.catalog.search("B" + index);
+      if (book == null || (index % 2 == 0) != (book.getBorrower() != null)) {
+        missing++;
+      }
+    }
+    System.out.println(phase + ": " + missing + " of " + books + " books missing or with a wrong loan");
+    return missing == 0;
+  }
+}
@@ -0,0 +1,381 @@
+import java.util.*;
+import java.text.*;
+import java.io.*;
+
+/**
+ * Runs library operations read from a command file or from standard input,
+ * without any prompt. Every line holds one command and its arguments,
+ * separated by tabs so that titles and addresses may contain spaces:
+ * <pre>
+ *   addMember   name  address  phone
+ *   addBook     title  author  bookId
+ *   issue       memberId  bookId
+ *   return      bookId
+ *   renew       bookId  memberId
+ *   issueBooks  memberId  bookId ...
+ *   returnBooks bookId ...
+ *   renewBooks  memberId  bookId ...
+ *   removeBook  bookId
+ *   placeHold   memberId  bookId  days
+ *   removeHold  memberId  bookId
+ *   processHold bookId
+ *   transactions  memberId  mm/dd/yy
+ *   search      words  [limit]
+ *   member      memberId
+ *   importBooks   file
+ *   importMembers file
+ *   export        books|members|transactions  file
+ *   save
+ *   retrieve
+ * </pre>
+ * Blank lines and lines starting with # are skipped. The result of each
+ * command is reported on its own line, with the line number, OK or FAILED,
+ * and details; the number of commands run and their throughput follow
+ * at the end. Commands answered by a result code of Library give the name
+ * of the code, such as BOOK_NOT_FOUND, before the details. Commands are
+ * run in chunks of up to CHUNK, each as one batch (see execute(List)), and
+ * the results of a chunk are reported once its records are on disk.
+ *
+ */
+public class BatchProcessor {
+  private static final String OK = "OK\t";
+  private static final String FAILED = "FAILED\t";
+  private static final int CHUNK = 1000;
+  private static final String[] CODES = {null, "BOOK_NOT_FOUND", "BOOK_NOT_ISSUED", "BOOK_HAS_HOLD", "BOOK_ISSUED",
+      "HOLD_PLACED", "NO_HOLD_FOUND", "OPERATION_COMPLETED", "OPERATION_FAILED", "NO_SUCH_MEMBER"};
+  private static final String[] DESCRIPTIONS = {null, "no such book", "book not issued", "completed, book has a hold",
+      "book is issued", "hold placed", "no such hold", "completed", "operation failed", "no such member"};
+  private Library library;
+  private PrintWriter output;
+  private Set<String> allowed;
+
+  /**
+   * Creates a processor working on a library
+   * @param library the library the commands are applied to
+   * @param output where results are reported
+   */
+  public BatchProcessor(Library library, PrintWriter output) {
+    this(library, output, null);
+  }
+
+  /**
+   * Creates a processor that only runs some of the commands; the others
+   * fail without being run
+   * @param library the library the commands are applied to
+   * @param output where results are reported
+   * @param allowed names of the commands allowed, in lower case; null for all
+   */
+  public BatchProcessor(Library library, PrintWriter output, Set<String> allowed) {
+    this.library = library;
+    this.output = output;
+    this.allowed = allowed;
+  }
+
+  /**
+   * Runs every command of a stream and reports the totals. A chunk ends
+   * when it holds CHUNK commands or when no more input is ready, so
+   * commands typed one at a time are still answered at once.
+   * @param input the commands, one per line
+   * @return number of commands that failed
+   * @throws IOException if the commands cannot be read
+   */
+  public int process(BufferedReader input) throws IOException {
+    long start = System.nanoTime();
+    int commands = 0;
+    int failures = 0;
+    int lineNumber = 0;
+    List<String> chunk = new ArrayList<String>(CHUNK);
+    int[] lineNumbers = new int[CHUNK];
+    String line;
+    while ((line = input.readLine()) != null) {
+      lineNumber++;
+      if (!line.trim().isEmpty() && !line.startsWith("#")) {
+        lineNumbers[chunk.size()] = lineNumber;
+        chunk.add(line);
+      }
+      if (chunk.size() == CHUNK || (!chunk.isEmpty() && !input.ready())) {
+        commands += chunk.size();
+        failures += report(chunk, lineNumbers);
+      }
+    }
+    if (!chunk.isEmpty()) {
+      commands += chunk.size();
+      failures += report(chunk, lineNumbers);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    output.printf("%d commands, %d failed, in %.3f s (%.0f commands/s)%n", commands, failures, seconds,
+        commands / Math.max(seconds, 1e-9));
+    output.flush();
+    return failures;
+  }
+
+  /**
+   * Runs a single command
+   * @param line the command and its arguments, separated by tabs
+   * @return OK or FAILED, a tab, and details
+   */
+  public String execute(String line) {
+    try {
+      return execute(line.split("\t"));
+    } catch (RuntimeException re) {
+      return failed(re.toString());
+    }
+  }
+
+  /**
+   * Runs several commands as one batch: their journal records are forced
+   * to disk together once the last one has run
+   * @param lines the commands, each with its arguments separated by tabs
+   * @return the result of each command, in order
+   */
+  public List<String> execute(List<String> lines) {
+    List<String> results = new ArrayList<String>(lines.size());
+    Library.beginBatch();
+    try {
+      for (String line : lines) {
+        results.add(execute(line));
+      }
+    } finally {
+      Library.endBatch();
+    }
+    return results;
+  }
+
+  /*
+   * Runs a chunk of commands as one batch, reports their results and
+   * empties the chunk; returns the number of commands that failed
+   */
+  private int report(List<String> chunk, int[] lineNumbers) {
+    int failures = 0;
+    List<String> results = execute(chunk);
+    for (int index = 0; index < results.size(); index++) {
+      String result = results.get(index);
+      if (result.startsWith(FAILED)) {
+        failures++;
+      }
+      output.println(lineNumbers[index] + "\t" + result);
+    }
+    chunk.clear();
+    return failures;
+  }
+
+  /*
+   * Runs a single command and describes its result
+   */
+  private String execute(String[] fields) {
+    String command = fields[0].trim();
+    if (allowed != null && !allowed.contains(command.toLowerCase())) {
+      return failed("command not allowed " + command);
+    }
+    if (command.equalsIgnoreCase("addMember")) {
+      expect(fields, 3);
+      Member member = library.addMember(fields[1], fields[2], fields[3]);
+      return member == null ? failed("refused") : ok("member " + member.getId());
+    } else if (command.equalsIgnoreCase("addBook")) {
+      expect(fields, 3);
+      Book book = library.addBook(fields[1], fields[2], fields[3]);
+      return book == null ? failed("duplicate book id") : ok("book " + book.getId());
+    } else if (command.equalsIgnoreCase("issue")) {
+      expect(fields, 2);
+      Book book = library.issueBook(fields[1], fields[2]);
+      return book == null ? failed("refused") : ok("due " + book.getDueDate());
+    } else if (command.equalsIgnoreCase("return")) {
+      expect(fields, 1);
+      return outcome(library.returnBook(fields[1]));
+    } else if (command.equalsIgnoreCase("renew")) {
+      expect(fields, 2);
+      Book book = library.renewBook(fields[1], fields[2]);
+      return book == null ? failed("refused") : ok("due " + book.getDueDate());
+    } else if (command.equalsIgnoreCase("issueBooks")) {
+      expect(fields, 2);
+      List<String> bookIds = Arrays.asList(fields).subList(2, fields.length);
+      return outcomes(bookIds, library.issueBooks(fields[1], bookIds));
+    } else if (command.equalsIgnoreCase("returnBooks")) {
+      expect(fields, 1);
+      List<String> bookIds = Arrays.asList(fields).subList(1, fields.length);
+      return outcomes(bookIds, library.returnBooks(bookIds));
+    } else if (command.equalsIgnoreCase("renewBooks")) {
+      expect(fields, 2);
+      List<String> bookIds = Arrays.asList(fields).subList(2, fields.length);
+      return outcomes(bookIds, library.renewBooks(fields[1], bookIds));
+    } else if (command.equalsIgnoreCase("removeBook")) {
+      expect(fields, 1);
+      return outcome(library.removeBook(fields[1]));
+    } else if (command.equalsIgnoreCase("placeHold")) {
+      expect(fields, 3);
+      return outcome(library.placeHold(fields[1], fields[2], Integer.parseInt(fields[3].trim())));
+    } else if (command.equalsIgnoreCase("removeHold")) {
+      expect(fields, 2);
+      return outcome(library.removeHold(fields[1], fields[2]));
+    } else if (command.equalsIgnoreCase("processHold")) {
+      expect(fields, 1);
+      Member member = library.processHold(fields[1]);
+      return member == null ? ok("no valid hold") : ok("notify member " + member.getId());
+    } else if (command.equalsIgnoreCase("transactions")) {
+      expect(fields, 2);
+      return transactions(fields[1], fields[2]);
+    } else if (command.equalsIgnoreCase("search")) {
+      expect(fields, 1);
+      return search(fields[1], fields.length > 2 ? Integer.parseInt(fields[2].trim()) : 10);
+    } else if (command.equalsIgnoreCase("member")) {
+      expect(fields, 1);
+      Member member = library.searchMembership(fields[1]);
+      return member == null ? failed("no such member") : ok(member.getName() + "\t" + member.getAddress()
+          + "\t" + member.getPhone());
+    } else if (command.equalsIgnoreCase("importBooks") || command.equalsIgnoreCase("importMembers")) {
+      expect(fields, 1);
+      BulkImporter importer = new BulkImporter(library, Runtime.getRuntime().availableProcessors());
+      try {
+        File file = new File(fields[1].trim());
+        BulkImporter.Report report = command.equalsIgnoreCase("importBooks") ? importer.importBooks(file)
+            : importer.importMembers(file);
+        return ok(report.toString());
+      } catch (IOException ioe) {
+        return failed(ioe.toString());
+      }
+    } else if (command.equalsIgnoreCase("export")) {
+      expect(fields, 2);
+      return export(fields[1].trim(), new File(fields[2].trim()));
+    } else if (command.equalsIgnoreCase("save")) {
+      return Library.save() ? ok("saved") : failed("could not save");
+    } else if (command.equalsIgnoreCase("retrieve")) {
+      Library retrieved = Library.retrieve();
+      if (retrieved == null) {
+        return failed("no saved data");
+      }
+      library = retrieved;
+      return ok("retrieved");
+    }
+    return failed("unknown command " + command);
+  }
+
+  /*
+   * Lists the transactions of a member on a date
+   */
+  private String transactions(String memberId, String day) {
+    Calendar date = new GregorianCalendar();
+    try {
+      date.setTime(SimpleDateFormat.getDateInstance(DateFormat.SHORT).parse(day.trim()));
+    } catch (ParseException pe) {
+      return failed("date is not mm/dd/yy");
+    }
+    Iterator result = library.getTransactions(memberId, date);
+    if (result == null) {
+      return failed("no such member");
+    }
+    StringBuilder list = new StringBuilder();
+    int count = 0;
+    while (result.hasNext()) {
+      Transaction transaction = (Transaction) result.next();
+      list.append("\t").append(transaction.getType()).append(transaction.getTitle());
+      count++;
+    }
+    return ok(count + " transactions" + list);
+  }
+
+  /*
+   * Lists the books matching words of their titles or authors
+   */
+  private String search(String query, int limit) {
+    StringBuilder list = new StringBuilder();
+    int count = 0;
+    for (Iterator<Book> result = library.searchBooks(query, limit); result.hasNext(); count++) {
+      Book book = result.next();
+      list.append("\t").append(book.getId()).append(" ").append(book.getTitle()).append(" by ")
+          .append(book.getAuthor());
+    }
+    return ok(count + " books" + list);
+  }
+
+  /*
+   * Writes the books, the members or the transactions to a file, as JSON
+   * Lines if its name ends with .jsonl or .json and as CSV otherwise
+   */
+  private String export(String what, File file) {
+    if (!what.equalsIgnoreCase("books") && !what.equalsIgnoreCase("members")
+        && !what.equalsIgnoreCase("transactions")) {
+      return failed("cannot export " + what);
+    }
+    Exporter exporter = new Exporter(library, Exporter.formatOf(file.getName()));
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+        int rows;
+        if (what.equalsIgnoreCase("books")) {
+          rows = exporter.exportBooks(writer);
+        } else if (what.equalsIgnoreCase("members")) {
+          rows = exporter.exportMembers(writer);
+        } else {
+          rows = exporter.exportTransactions(writer);
+        }
+        return ok(rows + " rows written to " + file);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException ioe) {
+      return failed(ioe.toString());
+    }
+  }
+
+  /*
+   * Describes a result code of Library
+   */
+  private static String outcome(int code) {
+    code = known(code);
+    String description = CODES[code] + "\t" + DESCRIPTIONS[code];
+    return succeeded(code) ? ok(description) : failed(description);
+  }
+
+  /*
+   * Describes the result codes of a command on several books: the id and
+   * the code of each book. The command failed if any book failed.
+   */
+  private static String outcomes(List<String> bookIds, int[] codes) {
+    StringBuilder list = new StringBuilder();
+    boolean succeeded = true;
+    for (int index = 0; index < codes.length; index++) {
+      int code = known(codes[index]);
+      list.append("\t").append(bookIds.get(index)).append(" ").append(CODES[code]);
+      succeeded &= succeeded(code);
+    }
+    String detail = codes.length + " books" + list;
+    return succeeded ? ok(detail) : failed(detail);
+  }
+
+  /*
+   * Treats codes Library does not define as OPERATION_FAILED
+   */
+  private static int known(int code) {
+    return code > 0 && code < CODES.length ? code : Library.OPERATION_FAILED;
+  }
+
+  /*
+   * Tells the codes of operations that were carried out
+   */
+  private static boolean succeeded(int code) {
+    return code == Library.OPERATION_COMPLETED || code == Library.BOOK_HAS_HOLD || code == Library.HOLD_PLACED;
+  }
+
+  /*
+   * Formats the result of a command that succeeded
+   */
+  private static String ok(String detail) {
+    return OK + detail;
+  }
+
+  /*
+   * Formats the result of a command that failed
+   */
+  private static String failed(String reason) {
+    return FAILED + reason;
+  }
+
+  /*
+   * Checks that a command has its arguments
+   */
+  private static void expect(String[] fields, int arguments) {
+    if (fields.length <= arguments) {
+      throw new IllegalArgumentException(fields[0].trim() + " needs " + arguments + " arguments");
+    }
+  }
+}
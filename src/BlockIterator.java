@@ -0,0 +1,190 @@
+import java.util.*;
+
+/**
+ * Iterates over the books of the catalog or the members of the member list
+ * while they keep changing, without copying the collection or locking it
+ * for the whole iteration. The elements of an attached mapped snapshot come
+ * first, read from it by position without being loaded; the elements held
+ * in memory follow. Each block of elements is taken with the collection
+ * locked. If the collection changed since the previous block, the
+ * iteration finds its place again just after the last elements it
+ * returned. Elements inserted or removed meanwhile may or may not be
+ * returned; the others are returned once, in collection order.
+ *
+ */
+abstract class BlockIterator<T> implements Iterator<T> {
+  private static final int BLOCK = 1024;
+  private Object owner;
+  private boolean started;
+  private MappedSnapshot snapshot;
+  private int position;
+  private Iterator<T> live;
+  private int expected;
+  private T pending;
+  private Set<String> last = new HashSet<String>();
+  private int visited;
+  private List<T> block = new ArrayList<T>(BLOCK);
+  private int next;
+  private boolean done;
+
+  /**
+   * Creates an iterator over a collection
+   * @param owner the collection, whose monitor guards it
+   */
+  BlockIterator(Object owner) {
+    this.owner = owner;
+  }
+
+  /**
+   * Returns the mapped snapshot attached to the collection
+   * @return the snapshot, or null if every element is in memory
+   */
+  abstract MappedSnapshot attached();
+
+  /**
+   * Returns the number of elements of a snapshot
+   * @param snapshot the snapshot
+   * @return number of elements
+   */
+  abstract int count(MappedSnapshot snapshot);
+
+  /**
+   * Returns an element of a snapshot without loading it
+   * @param snapshot the snapshot
+   * @param position position of the element
+   * @return the element, or null if it has been removed from the collection
+   */
+  abstract T read(MappedSnapshot snapshot, int position);
+
+  /**
+   * Returns the elements held in memory, in collection order
+   * @return the elements
+   */
+  abstract Collection<T> inMemory();
+
+  /**
+   * Returns a number that changes whenever the collection does
+   * @return the number of changes so far
+   */
+  abstract int modifications();
+
+  /**
+   * Returns the key of an element
+   * @param element the element
+   * @return its id
+   */
+  abstract String key(T element);
+
+  /**
+   * Checks whether there are more elements, taking the next block if needed
+   * @return true iff next() has an element to return
+   */
+  public boolean hasNext() {
+    while (next == block.size()) {
+      if (done) {
+        return false;
+      }
+      block.clear();
+      next = 0;
+      synchronized (owner) {
+        done = !fill();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the next element
+   * @return the element
+   */
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return block.get(next++);
+  }
+
+  /**
+   * Not supported
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /*
+   * Takes the next block; returns false once the collection is exhausted
+   */
+  private boolean fill() {
+    if (!started) {
+      started = true;
+      snapshot = attached();
+    }
+    if (snapshot != null) {
+      if (attached() == snapshot && position < count(snapshot)) {
+        last.clear();
+        for (int end = Math.min(position + BLOCK, count(snapshot)); position < end; position++) {
+          T element = read(snapshot, position);
+          if (element != null) {
+            block.add(element);
+            last.add(key(element));
+          }
+        }
+        visited += block.size();
+        return true;
+      }
+      boolean walked = attached() == snapshot;
+      snapshot = null;
+      live = inMemory().iterator();
+      expected = modifications();
+      if (!walked) {
+        resync();
+      }
+    } else if (live == null) {
+      live = inMemory().iterator();
+      expected = modifications();
+    } else if (expected != modifications()) {
+      live = inMemory().iterator();
+      expected = modifications();
+      resync();
+    }
+    if (pending != null) {
+      block.add(pending);
+      pending = null;
+    }
+    while (block.size() < BLOCK && live.hasNext()) {
+      block.add(live.next());
+    }
+    last.clear();
+    for (T element : block) {
+      last.add(key(element));
+    }
+    visited += block.size();
+    return !block.isEmpty();
+  }
+
+  /*
+   * Moves a new iterator over the elements in memory just past the last
+   * ones returned. If none of them is left, it skips as many elements as
+   * were returned so far instead.
+   */
+  private void resync() {
+    pending = null;
+    boolean found = false;
+    while (live.hasNext()) {
+      T element = live.next();
+      if (last.contains(key(element))) {
+        found = true;
+      } else if (found) {
+        pending = element;
+        return;
+      }
+    }
+    if (found) {
+      return;
+    }
+    live = inMemory().iterator();
+    for (int skipped = 0; skipped < visited && live.hasNext(); skipped++) {
+      live.next();
+    }
+  }
+}
@@ -20,6 +20,7 @@
 import java.util.*;
 import java.lang.*;
 import java.io.*;
+import java.util.concurrent.locks.*;
 
 /**
  * Represents a single book
@@ -32,7 +33,7 @@ public class Book implements Serializable {
   public String author;
   public String id;
   public Member borrowedBy;
-  public List holds = new LinkedList();
+  public HoldQueue holds = new HoldQueue();
   private Calendar dueDate;
 
   /**
@@ -55,11 +56,22 @@ public class Book implements Serializable {
   public boolean issue(Member member) {
     borrowedBy = member;
     dueDate = new GregorianCalendar();
-    dueDate.setTimeInMillis(System.currentTimeMillis());
+    dueDate.setTimeInMillis(LibraryClock.now());
     dueDate.add(Calendar.MONTH, 1);
     return true;
   }
 
+  /**
+   * Restores the loan of the book when loading a snapshot
+   * @param member the borrower
+   * @param dueTime time at which the book is due, in milliseconds
+   */
+  void restoreLoan(Member member, long dueTime) {
+    borrowedBy = member;
+    dueDate = new GregorianCalendar();
+    dueDate.setTimeInMillis(dueTime);
+  }
+
   /**
    * Marks the book as returned
    * @return The member who had borrowed the book
@@ -103,30 +115,25 @@ public class Book implements Serializable {
    * @return true iff the hold could be removed
    */
   public boolean removeHold(String memberId) {
-    for (ListIterator iterator = holds.listIterator(); iterator.hasNext(); ) {
-      Hold hold = (Hold) iterator.next();
-      String id = hold.getMember().getId();
-      if (id.equals(memberId)) {
-        iterator.remove();
-        return true;
-      }
-    }
-    return false;
+    return holds.remove(memberId) != null;
+  }
+
+  /**
+   * Removes the hold a member placed with a given expiry time
+   * @param memberId whose hold has to be removed
+   * @param expiry time at which the hold expires, in milliseconds
+   * @return the hold removed, or null if there is no such hold
+   */
+  public Hold removeHold(String memberId, long expiry) {
+    return holds.remove(memberId, expiry);
   }
 
   /**
-   * Returns a valid hold
+   * Returns a valid hold, dropping the expired holds ahead of it
    * @return the next valid hold
    */
   public Hold getNextHold() {
-    for (ListIterator iterator = holds.listIterator(); iterator.hasNext(); ) {
-      Hold hold = (Hold) iterator.next();
-      iterator.remove();
-      if (hold.isValid()) {
-        return hold;
-      }
-    }
-    return null;
+    return holds.poll();
   }
 
   /**
@@ -134,11 +141,7 @@ public class Book implements Serializable {
    * @return true iff there is a hold
    */
   public boolean hasHold() {
-    ListIterator iterator = holds.listIterator();
-    if (iterator.hasNext()) {
-      return true;
-    }
-    return false;
+    return !holds.isEmpty();
   }
 
   /**
@@ -189,11 +192,89 @@ public class Book implements Serializable {
     return (dueDate.getTime().toString());
   }
 
+  /**
+   * Getter for due date in milliseconds
+   * @return the time at which the book is due
+   */
+  public long getDueTime() {
+    return dueDate.getTimeInMillis();
+  }
+
+  /*
+   * Reads a book back, also accepting the list of holds kept by earlier
+   * versions of this class
+   */
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = input.readFields();
+    title = (String) fields.get("title", null);
+    author = (String) fields.get("author", null);
+    id = (String) fields.get("id", null);
+    borrowedBy = (Member) fields.get("borrowedBy", null);
+    dueDate = (Calendar) fields.get("dueDate", null);
+    Object stored = fields.get("holds", null);
+    if (stored instanceof List) {
+      holds = new HoldQueue();
+      for (Object hold : (List) stored) {
+        holds.add((Hold) hold);
+      }
+    } else {
+      holds = (HoldQueue) stored;
+    }
+  }
+
+  /**
+   * Writes the string form of the book, including that of its borrower.
+   * The borrower is read with the book's lock held (see
+   * Library.bookLock()); it is written after the lock is released.
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    Member borrower;
+    Lock bookLock = Library.bookLock(id);
+    bookLock.lock();
+    try {
+      borrower = borrowedBy;
+    } finally {
+      bookLock.unlock();
+    }
+    output.append("title ").append(title).append(" author ").append(author).append(" id ").append(id)
+        .append(" borrowed by ");
+    if (borrower == null) {
+      output.append("null");
+    } else {
+      borrower.appendTo(output);
+    }
+  }
+
+  /**
+   * Estimates the length of the string form, to size buffers
+   * @return the approximate number of characters
+   */
+  int renderedLength() {
+    Member borrower = borrowedBy;
+    return 48 + length(title) + length(author) + length(id)
+        + (borrower == null ? 4 : borrower.renderedLength());
+  }
+
+  /*
+   * Returns the length of a field as appendTo() writes it: "null" if unset
+   */
+  private static int length(String field) {
+    return field == null ? 4 : field.length();
+  }
+
   /**
    * String form of the book
    *
    */
   public String toString() {
-    return "title " + title + " author " + author + " id " + id + " borrowed by " + borrowedBy;
+    StringBuilder string = new StringBuilder(renderedLength());
+    try {
+      appendTo(string);
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+    return string.toString();
   }
 }
\ No newline at end of file
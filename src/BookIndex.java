@@ -0,0 +1,317 @@
+import java.util.*;
+
+/**
+ * Inverted index over the titles and authors of the books in the catalog.
+ * Every book is numbered in the order it is added, and every word of a
+ * title or an author name maps to the sorted numbers of the books
+ * containing it, so a query only touches the books that match at least one
+ * of its words. Queries walk the lists of their words together and keep
+ * only the best books found so far; once no book left to be seen can
+ * beat those, the lists of the words that cannot get a book in alone are
+ * only probed for the books of the others (max-score pruning).
+ *
+ */
+public class BookIndex {
+  private static final int TITLE_WEIGHT = 2;
+  private static final int AUTHOR_WEIGHT = 1;
+  private Map<String, Postings> titleWords = new HashMap<String, Postings>();
+  private Map<String, Postings> authorWords = new HashMap<String, Postings>();
+  private Map<String, Integer> numbers = new HashMap<String, Integer>();
+  private List<String> ids = new ArrayList<String>();
+
+  /*
+   * Numbers of the books containing a word, in increasing order
+   */
+  private static class Postings {
+    private int[] numbers = new int[2];
+    private int size;
+  }
+
+  /*
+   * Position of a query in the postings of one of its words
+   */
+  private static class Cursor {
+    private int[] numbers;
+    private int size;
+    private int weight;
+    private int position;
+
+    private Cursor(Postings postings, int weight) {
+      numbers = postings.numbers;
+      size = postings.size;
+      this.weight = weight;
+    }
+
+    /*
+     * Returns the current book number, or Integer.MAX_VALUE at the end
+     */
+    private int current() {
+      return position < size ? numbers[position] : Integer.MAX_VALUE;
+    }
+
+    /*
+     * Moves to the first book number at or after the given one, galloping
+     * then searching in halves
+     */
+    private void seek(int number) {
+      int step = 1;
+      int high = position;
+      while (high < size && numbers[high] < number) {
+        position = high + 1;
+        high += step;
+        step <<= 1;
+      }
+      high = Math.min(high, size);
+      while (position < high) {
+        int middle = (position + high) >>> 1;
+        if (numbers[middle] < number) {
+          position = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the text into lower case words. Anything other than a letter or
+   * a digit separates words.
+   * @param text the text to be split
+   * @return the words in the text, in order; empty if the text is null
+   */
+  public static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<String>();
+    if (text == null) {
+      return words;
+    }
+    int start = -1;
+    for (int index = 0; index <= text.length(); index++) {
+      boolean wordChar = index < text.length() && Character.isLetterOrDigit(text.charAt(index));
+      if (wordChar && start < 0) {
+        start = index;
+      } else if (!wordChar && start >= 0) {
+        words.add(text.substring(start, index).toLowerCase());
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Adds the title and author words of a book to the index
+   * @param book the book to be indexed
+   */
+  public void add(Book book) {
+    int number = ids.size();
+    ids.add(book.getId());
+    numbers.put(book.getId(), number);
+    for (String word : tokenize(book.getTitle())) {
+      append(postings(titleWords, word), number);
+    }
+    for (String word : tokenize(book.getAuthor())) {
+      append(postings(authorWords, word), number);
+    }
+  }
+
+  /**
+   * Removes the title and author words of a book from the index
+   * @param book the book to be removed
+   */
+  public void remove(Book book) {
+    Integer number = numbers.remove(book.getId());
+    if (number == null) {
+      return;
+    }
+    ids.set(number, null);
+    for (String word : tokenize(book.getTitle())) {
+      removePosting(titleWords, word, number);
+    }
+    for (String word : tokenize(book.getAuthor())) {
+      removePosting(authorWords, word, number);
+    }
+  }
+
+  /**
+   * Finds the books matching any of the words of the query. Books are
+   * ranked by the number of query words they contain, a word in the
+   * title counting more than a word in the author name; books with the
+   * same score come in the order they were added. Only the best books
+   * are kept while the query runs, in a heap of at most limit entries.
+   * @param query the words to look for
+   * @param limit maximum number of ids returned
+   * @return ids of the matching books, best match first
+   */
+  public List<String> search(String query, int limit) {
+    List<Cursor> found = new ArrayList<Cursor>();
+    for (String word : new LinkedHashSet<String>(tokenize(query))) {
+      if (titleWords.containsKey(word)) {
+        found.add(new Cursor(titleWords.get(word), TITLE_WEIGHT));
+      }
+      if (authorWords.containsKey(word)) {
+        found.add(new Cursor(authorWords.get(word), AUTHOR_WEIGHT));
+      }
+    }
+    if (limit <= 0 || found.isEmpty()) {
+      return new ArrayList<String>();
+    }
+    Cursor[] cursors = found.toArray(new Cursor[found.size()]);
+    Arrays.sort(cursors, new Comparator<Cursor>() {
+      public int compare(Cursor first, Cursor second) {
+        return first.weight - second.weight;
+      }
+    });
+    int[] bound = new int[cursors.length];
+    for (int index = 0; index < cursors.length; index++) {
+      bound[index] = (index == 0 ? 0 : bound[index - 1]) + cursors[index].weight;
+    }
+    int[] heapNumbers = new int[limit];
+    int[] heapScores = new int[limit];
+    int size = 0;
+    int essential = 0;
+    while (essential < cursors.length) {
+      int number = Integer.MAX_VALUE;
+      for (int index = essential; index < cursors.length; index++) {
+        number = Math.min(number, cursors[index].current());
+      }
+      if (number == Integer.MAX_VALUE) {
+        break;
+      }
+      int score = 0;
+      for (int index = essential; index < cursors.length; index++) {
+        if (cursors[index].current() == number) {
+          score += cursors[index].weight;
+          cursors[index].position++;
+        }
+      }
+      for (int index = essential - 1; index >= 0; index--) {
+        if (size == limit && score + bound[index] <= heapScores[0]) {
+          break;
+        }
+        cursors[index].seek(number);
+        if (cursors[index].current() == number) {
+          score += cursors[index].weight;
+        }
+      }
+      if (size < limit) {
+        heapNumbers[size] = number;
+        heapScores[size] = score;
+        up(heapNumbers, heapScores, size++);
+      } else if (score > heapScores[0]) {
+        heapNumbers[0] = number;
+        heapScores[0] = score;
+        down(heapNumbers, heapScores, size);
+      }
+      while (size == limit && essential < cursors.length && bound[essential] <= heapScores[0]) {
+        essential++;
+      }
+    }
+    String[] result = new String[size];
+    while (size > 0) {
+      result[--size] = ids.get(heapNumbers[0]);
+      heapNumbers[0] = heapNumbers[size];
+      heapScores[0] = heapScores[size];
+      down(heapNumbers, heapScores, size);
+    }
+    return Arrays.asList(result);
+  }
+
+  /*
+   * Tells whether the first entry of the heap ranks below the second: a
+   * lower score, or the same score and added later
+   */
+  private static boolean worse(int[] numbers, int[] scores, int first, int second) {
+    return scores[first] < scores[second] || scores[first] == scores[second] && numbers[first] > numbers[second];
+  }
+
+  /*
+   * Moves an entry up the heap, whose top is the entry ranking lowest
+   */
+  private static void up(int[] numbers, int[] scores, int position) {
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      if (!worse(numbers, scores, position, parent)) {
+        return;
+      }
+      swap(numbers, scores, position, parent);
+      position = parent;
+    }
+  }
+
+  /*
+   * Moves the top entry down the heap
+   */
+  private static void down(int[] numbers, int[] scores, int size) {
+    int position = 0;
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= size) {
+        return;
+      }
+      if (child + 1 < size && worse(numbers, scores, child + 1, child)) {
+        child++;
+      }
+      if (!worse(numbers, scores, child, position)) {
+        return;
+      }
+      swap(numbers, scores, position, child);
+      position = child;
+    }
+  }
+
+  /*
+   * Swaps two entries of the heap
+   */
+  private static void swap(int[] numbers, int[] scores, int first, int second) {
+    int number = numbers[first];
+    numbers[first] = numbers[second];
+    numbers[second] = number;
+    int score = scores[first];
+    scores[first] = scores[second];
+    scores[second] = score;
+  }
+
+  /*
+   * Appends a book number to the postings of a word, unless the word
+   * occurred earlier in the same text
+   */
+  private static void append(Postings postings, int number) {
+    if (postings.size > 0 && postings.numbers[postings.size - 1] == number) {
+      return;
+    }
+    if (postings.size == postings.numbers.length) {
+      postings.numbers = Arrays.copyOf(postings.numbers, postings.size * 2);
+    }
+    postings.numbers[postings.size++] = number;
+  }
+
+  /*
+   * Returns the postings of a word, creating them if needed
+   */
+  private static Postings postings(Map<String, Postings> words, String word) {
+    Postings postings = words.get(word);
+    if (postings == null) {
+      postings = new Postings();
+      words.put(word, postings);
+    }
+    return postings;
+  }
+
+  /*
+   * Removes a book number from the postings of a word, dropping empty
+   * postings
+   */
+  private static void removePosting(Map<String, Postings> words, String word, int number) {
+    Postings postings = words.get(word);
+    if (postings == null) {
+      return;
+    }
+    int position = Arrays.binarySearch(postings.numbers, 0, postings.size, number);
+    if (position < 0) {
+      return;
+    }
+    System.arraycopy(postings.numbers, position + 1, postings.numbers, position, postings.size - position - 1);
+    if (--postings.size == 0) {
+      words.remove(word);
+    }
+  }
+}
@@ -0,0 +1,289 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/**
+ * Loads books or members from CSV or TSV files, e.g. when migrating from
+ * another system. The file is read in chunks of lines which are parsed and
+ * validated in parallel; the valid rows are then added to the library in
+ * file order, one batch per chunk, so that the journal is forced to disk
+ * once per chunk rather than once per row.
+ * Book files have the columns title, author and id. Member files have the
+ * columns name, address and phone, and optionally the member's id. A first
+ * line naming the columns is skipped. Fields may be quoted with double
+ * quotes, doubling the quotes inside; a row must fit on one line. Files
+ * whose first line contains a tab are read as TSV.
+ *
+ */
+public class BulkImporter {
+  private static final int CHUNK_LINES = 10000;
+  private static final int MAX_ERRORS = 100;
+  private static final String[] BOOK_COLUMNS = {"title", "author", "id"};
+  private static final String[] MEMBER_COLUMNS = {"name", "address", "phone", "id"};
+  private Library library;
+  private int threads;
+
+  /**
+   * The outcome of an import
+   */
+  public static class Report {
+    private int rows;
+    private int imported;
+    private int duplicates;
+    private int invalid;
+    private List<String> errors = new ArrayList<String>();
+    private long elapsed;
+
+    /**
+     * Getter for the number of rows read
+     * @return rows read, the header excluded
+     */
+    public int getRows() {
+      return rows;
+    }
+
+    /**
+     * Getter for the number of rows imported
+     * @return rows added to the library
+     */
+    public int getImported() {
+      return imported;
+    }
+
+    /**
+     * Getter for the number of duplicates
+     * @return rows skipped because their id was already in the file or in the library
+     */
+    public int getDuplicates() {
+      return duplicates;
+    }
+
+    /**
+     * Getter for the number of invalid rows
+     * @return rows skipped because a field was missing
+     */
+    public int getInvalid() {
+      return invalid;
+    }
+
+    /**
+     * Returns the reasons the first invalid rows were skipped for
+     * @return iterator to messages giving the line number and the reason
+     */
+    public Iterator<String> getErrors() {
+      return errors.iterator();
+    }
+
+    /**
+     * String form of the report
+     *
+     */
+    @Override
+    public String toString() {
+      return rows + " rows, " + imported + " imported, " + duplicates + " duplicates, " + invalid
+          + " invalid, in " + elapsed + " ms";
+    }
+  }
+
+  /*
+   * A chunk of lines and, once parsed, its valid rows
+   */
+  private static class Chunk {
+    private int firstLine;
+    private List<String> lines = new ArrayList<String>(CHUNK_LINES);
+    private List<String[]> rows = new ArrayList<String[]>(CHUNK_LINES);
+    private List<String> errors = new ArrayList<String>();
+  }
+
+  /**
+   * Creates an importer
+   * @param library the library receiving the rows
+   * @param threads number of threads parsing the file
+   */
+  public BulkImporter(Library library, int threads) {
+    this.library = library;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Imports books
+   * @param file CSV or TSV file of title, author and id
+   * @return the outcome of the import
+   * @throws IOException if the file cannot be read
+   */
+  public Report importBooks(File file) throws IOException {
+    return run(file, BOOK_COLUMNS, 3, true);
+  }
+
+  /**
+   * Imports members
+   * @param file CSV or TSV file of name, address, phone and optionally id
+   * @return the outcome of the import
+   * @throws IOException if the file cannot be read
+   */
+  public Report importMembers(File file) throws IOException {
+    return run(file, MEMBER_COLUMNS, 3, false);
+  }
+
+  /*
+   * Reads the file in chunks, parses them on the pool and adds their
+   * rows in order. At most two chunks per thread are in flight.
+   */
+  private Report run(File file, final String[] columns, final int required, boolean books) throws IOException {
+    long start = System.currentTimeMillis();
+    Report report = new Report();
+    ExecutorService parsers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Library import parser");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Set<String> ids = new HashSet<String>();
+    ArrayDeque<Future<Chunk>> parsing = new ArrayDeque<Future<Chunk>>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = reader.readLine();
+      if (line == null) {
+        return report;
+      }
+      final char separator = line.indexOf('\t') >= 0 ? '\t' : ',';
+      int lineNumber = 1;
+      if (isHeader(split(line, separator), columns)) {
+        line = reader.readLine();
+        lineNumber++;
+      }
+      while (line != null) {
+        final Chunk chunk = new Chunk();
+        chunk.firstLine = lineNumber;
+        for (; line != null && chunk.lines.size() < CHUNK_LINES; line = reader.readLine()) {
+          chunk.lines.add(line);
+          lineNumber++;
+        }
+        parsing.add(parsers.submit(new Callable<Chunk>() {
+          public Chunk call() {
+            parse(chunk, separator, columns.length, required);
+            return chunk;
+          }
+        }));
+        if (parsing.size() >= 2 * threads) {
+          insert(parsing.poll(), ids, books, report);
+        }
+      }
+      while (!parsing.isEmpty()) {
+        insert(parsing.poll(), ids, books, report);
+      }
+    } finally {
+      reader.close();
+      parsers.shutdownNow();
+    }
+    report.elapsed = System.currentTimeMillis() - start;
+    return report;
+  }
+
+  /*
+   * Waits for a chunk to be parsed, drops the ids already seen and adds
+   * the remaining rows as one batch
+   */
+  private void insert(Future<Chunk> parsed, Set<String> ids, boolean books, Report report) throws IOException {
+    Chunk chunk;
+    try {
+      chunk = parsed.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while importing");
+    } catch (ExecutionException ee) {
+      throw new IOException("could not parse the file", ee.getCause());
+    }
+    report.rows += chunk.lines.size();
+    report.invalid += chunk.errors.size();
+    for (String error : chunk.errors) {
+      if (report.errors.size() < MAX_ERRORS) {
+        report.errors.add(error);
+      }
+    }
+    List<String[]> rows = new ArrayList<String[]>(chunk.rows.size());
+    int idColumn = books ? 2 : 3;
+    for (String[] row : chunk.rows) {
+      if (row.length <= idColumn || ids.add(row[idColumn])) {
+        rows.add(row);
+      }
+    }
+    int added = books ? library.addBooks(rows) : library.addMembers(rows);
+    report.imported += added;
+    report.duplicates += chunk.rows.size() - added;
+  }
+
+  /*
+   * Splits and validates the lines of a chunk
+   */
+  private static void parse(Chunk chunk, char separator, int columns, int required) {
+    int lineNumber = chunk.firstLine;
+    for (String line : chunk.lines) {
+      String[] fields = split(line, separator);
+      int count = Math.min(fields.length, columns);
+      while (count > required && fields[count - 1].trim().isEmpty()) {
+        count--;
+      }
+      if (count < required) {
+        chunk.errors.add("line " + lineNumber + ": " + required + " fields expected");
+      } else {
+        String[] row = new String[count];
+        boolean valid = true;
+        for (int column = 0; column < count; column++) {
+          row[column] = fields[column].trim();
+          valid &= !row[column].isEmpty();
+        }
+        if (valid) {
+          chunk.rows.add(row);
+        } else {
+          chunk.errors.add("line " + lineNumber + ": empty field");
+        }
+      }
+      lineNumber++;
+    }
+  }
+
+  /*
+   * Splits a line into its fields, removing the quotes around them
+   */
+  private static String[] split(String line, char separator) {
+    List<String> fields = new ArrayList<String>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int index = 0; index < line.length(); index++) {
+      char character = line.charAt(index);
+      if (quoted) {
+        if (character != '"') {
+          field.append(character);
+        } else if (index + 1 < line.length() && line.charAt(index + 1) == '"') {
+          field.append('"');
+          index++;
+        } else {
+          quoted = false;
+        }
+      } else if (character == '"') {
+        quoted = true;
+      } else if (character == separator) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(character);
+      }
+    }
+    fields.add(field.toString());
+    return fields.toArray(new String[fields.size()]);
+  }
+
+  /*
+   * Checks whether a line names the columns
+   */
+  private static boolean isHeader(String[] fields, String[] columns) {
+    for (int column = 0; column < fields.length && column < columns.length; column++) {
+      if (!fields[column].trim().equalsIgnoreCase(columns[column])) {
+        return false;
+      }
+    }
+    return fields.length > 0;
+  }
+}
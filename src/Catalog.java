@@ -27,7 +27,13 @@ import java.io.*;
  */
 public class Catalog implements Serializable {
   private static final long serialVersionUID = 1L;
-  public List<Book> books = new LinkedList();
+  public Map<String, Book> books = new LinkedHashMap<String, Book>();
+  private transient BookIndex index;
+  private transient PrefixIndex titles;
+  private transient PrefixIndex authors;
+  private transient MappedSnapshot snapshot;
+  private transient Set<String> removedFromSnapshot;
+  private transient int modifications;
   private static Catalog catalog;
   /*
    * Private constructor for singleton pattern
@@ -53,43 +59,208 @@ public class Catalog implements Serializable {
    * @return true iff the book exists
    * 
    */
-  public Book search(String bookId) {
-    for (Iterator iterator = books.iterator(); iterator.hasNext(); ) {
-      Book book = (Book) iterator.next();
-      if (book.getId().equals(bookId)) {
-        return book;
-      }
+  public synchronized Book search(String bookId) {
+    if (bookId == null) {
+      return null;
+    }
+    Book book = books.get(bookId);
+    if (book == null && snapshot != null && !removedFromSnapshot.contains(bookId)) {
+      book = snapshot.findBook(bookId);
     }
-    return null;
+    return book;
   }
   /**
    * Removes a book from the catalog
    * @param bookId book id
    * @return true iff book could be removed
    */
-  public boolean removeBook(String bookId) {
+  public synchronized boolean removeBook(String bookId) {
     Book book = search(bookId);
     if (book == null) {
       return false;
-    } else {
-      return books.remove(book);
     }
+    books.remove(bookId);
+    modifications++;
+    if (snapshot != null) {
+      removedFromSnapshot.add(bookId);
+    }
+    if (index != null) {
+      index.remove(book);
+      titles.remove(book.getTitle());
+      authors.remove(book.getAuthor());
+    }
+    return true;
   }
   /**
    * Inserts a book into the collection
    * @param book the book to be inserted
-   * @return true iff the book could be inserted. Currently always true
+   * @return true iff the book could be inserted; false if the id is already in use
    */
-  public boolean insertBook(Book book) {
-    books.add(book);
+  public synchronized boolean insertBook(Book book) {
+    if (book.getId() == null || search(book.getId()) != null) {
+      return false;
+    }
+    books.put(book.getId(), book);
+    modifications++;
+    if (index != null) {
+      index.add(book);
+      titles.add(book.getTitle());
+      authors.add(book.getAuthor());
+    }
     return true;
   }
+  /**
+   * Removes all books; used before loading a snapshot
+   */
+  synchronized void clear() {
+    books.clear();
+    modifications++;
+    index = null;
+    snapshot = null;
+    removedFromSnapshot = null;
+  }
+  /**
+   * Serves the books of a mapped snapshot. They are turned into objects
+   * when first looked up, or all at once when the whole catalog is needed.
+   * @param snapshot the snapshot, loaded into an empty catalog
+   */
+  synchronized void attach(MappedSnapshot snapshot) {
+    this.snapshot = snapshot;
+    removedFromSnapshot = new HashSet<String>();
+    modifications++;
+  }
+  /**
+   * Lists the books for a new snapshot without turning the books of an
+   * attached snapshot into objects. Those come first, in their saved
+   * order, followed by the books inserted since.
+   * @param inserted list receiving the books not in the attached snapshot
+   * @param removed set receiving the ids of the snapshot books removed since
+   * @return the attached snapshot, or null if all books are objects
+   */
+  synchronized MappedSnapshot capture(List<Book> inserted, Set<String> removed) {
+    inserted.addAll(books.values());
+    if (snapshot != null) {
+      removed.addAll(removedFromSnapshot);
+    }
+    return snapshot;
+  }
+  /*
+   * Turns the remaining books of the snapshot into objects. The snapshot
+   * books come first, in their saved order, followed by the books
+   * inserted since.
+   */
+  private void materialize() {
+    if (snapshot == null) {
+      return;
+    }
+    Map<String, Book> all = new LinkedHashMap<String, Book>();
+    for (int index = 0; index < snapshot.bookCount(); index++) {
+      Book book = snapshot.getBook(index);
+      if (!removedFromSnapshot.contains(book.getId())) {
+        all.put(book.getId(), book);
+      }
+    }
+    for (Book book : books.values()) {
+      all.put(book.getId(), book);
+    }
+    books = all;
+    snapshot = null;
+    removedFromSnapshot = null;
+    modifications++;
+  }
   /**
    * Returns an iterator to all books
    * @return iterator to the collection
    */
-  public Iterator getBooks() {
-    return books.iterator();
+  public synchronized Iterator getBooks() {
+    materialize();
+    return new ArrayList<Book>(books.values()).iterator();
+  }
+  /**
+   * Returns the books in catalog order without copying the catalog or
+   * loading the books of an attached snapshot; see BlockIterator. Books
+   * not loaded are copies read from the snapshot (see
+   * MappedSnapshot.peekBook()).
+   * @return iterator to the books
+   */
+  Iterator<Book> stream() {
+    return new BlockIterator<Book>(this) {
+      MappedSnapshot attached() {
+        return snapshot;
+      }
+
+      int count(MappedSnapshot snapshot) {
+        return snapshot.bookCount();
+      }
+
+      Book read(MappedSnapshot snapshot, int position) {
+        Book book = snapshot.peekBook(position);
+        return removedFromSnapshot.contains(book.getId()) ? null : book;
+      }
+
+      Collection<Book> inMemory() {
+        return books.values();
+      }
+
+      int modifications() {
+        return modifications;
+      }
+
+      String key(Book book) {
+        return book.getId();
+      }
+    };
+  }
+  /**
+   * Finds the books whose title or author contain the words of the query
+   * @param query words to look for
+   * @param limit maximum number of books returned
+   * @return iterator to the matching books, best match first
+   */
+  public synchronized Iterator<Book> searchText(String query, int limit) {
+    List<Book> result = new ArrayList<Book>();
+    for (String bookId : index().search(query, limit)) {
+      result.add(books.get(bookId));
+    }
+    return result.iterator();
+  }
+  /**
+   * Completes a prefix of a book title
+   * @param prefix the beginning of the title
+   * @param completions array receiving the matching titles
+   * @return the number of titles copied into the array
+   */
+  public synchronized int completeTitle(String prefix, String[] completions) {
+    index();
+    return titles.complete(prefix, completions);
+  }
+  /**
+   * Completes a prefix of an author name
+   * @param prefix the beginning of the author name
+   * @param completions array receiving the matching author names
+   * @return the number of names copied into the array
+   */
+  public synchronized int completeAuthor(String prefix, String[] completions) {
+    index();
+    return authors.complete(prefix, completions);
+  }
+  /*
+   * Returns the word index, building it and the prefix indexes from the
+   * books if they do not exist yet (e.g. after deserialization)
+   */
+  private BookIndex index() {
+    if (index == null) {
+      materialize();
+      index = new BookIndex();
+      titles = new PrefixIndex();
+      authors = new PrefixIndex();
+      for (Book book : books.values()) {
+        index.add(book);
+        titles.add(book.getTitle());
+        authors.add(book.getAuthor());
+      }
+    }
+    return index;
   }
   /*
    * Supports serialization
@@ -112,7 +283,7 @@ public class Catalog implements Serializable {
       if (catalog != null) {
         return;
       } else {
-        input.defaultReadObject();
+        readBooks(input.readFields());
         if (catalog == null) {
           catalog = (Catalog) input.readObject();
         } else {
@@ -125,10 +296,66 @@ public class Catalog implements Serializable {
       cnfe.printStackTrace();
     }
   }
+  /*
+   * Restores the books from the serialized fields, also accepting the
+   * list kept by earlier versions of this class
+   * @param fields the serialized fields
+   */
+  private void readBooks(ObjectInputStream.GetField fields) throws IOException {
+    Object stored = fields.get("books", null);
+    if (stored instanceof List) {
+      books = new LinkedHashMap<String, Book>();
+      for (Object object : (List<?>) stored) {
+        Book book = (Book) object;
+        books.put(book.getId(), book);
+      }
+    } else {
+      // the map writeObject() saved from this field
+      @SuppressWarnings("unchecked")
+      Map<String, Book> storedBooks = (Map<String, Book>) stored;
+      books = storedBooks;
+    }
+  }
+  /**
+   * Writes the string form of the collection: that of every book,
+   * separated by commas, between brackets. The books are taken from
+   * stream() and each is read under its own lock, so the collection is
+   * neither locked nor loaded from an attached snapshot meanwhile.
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    output.append('[');
+    boolean first = true;
+    for (Iterator<Book> iterator = stream(); iterator.hasNext(); ) {
+      Book book = iterator.next();
+      if (!first) {
+        output.append(", ");
+      }
+      book.appendTo(output);
+      first = false;
+    }
+    output.append(']');
+  }
   /** String form of the collection
   * 
   */
   public String toString() {
-    return books.toString();
+    int length = 2;
+    synchronized (this) {
+      for (Book book : books.values()) {
+        length += 2 + book.renderedLength();
+      }
+      if (snapshot != null) {
+        length += 80 * snapshot.bookCount();
+      }
+    }
+    StringBuilder string = new StringBuilder(length);
+    try {
+      appendTo(string);
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+    return string.toString();
   }
 }
@@ -0,0 +1,97 @@
+import java.util.*;
+
+/**
+ * The books on loan, ordered by the time they are due back, so that the
+ * overdue books are found without looking at the books that are not.
+ * Every book appears at most once, with its current due time.
+ *
+ */
+public class DueIndex {
+  private TreeMap<Long, Set<String>> byDueTime = new TreeMap<Long, Set<String>>();
+  private Map<String, Long> dueTimes = new HashMap<String, Long>();
+
+  /**
+   * A book on loan and the time it is due back
+   */
+  public static class Entry {
+    private String bookId;
+    private long dueTime;
+
+    private Entry(String bookId, long dueTime) {
+      this.bookId = bookId;
+      this.dueTime = dueTime;
+    }
+
+    /**
+     * Getter for the book id
+     * @return id of the book on loan
+     */
+    public String getBookId() {
+      return bookId;
+    }
+
+    /**
+     * Getter for the due time
+     * @return time at which the book is due, in milliseconds
+     */
+    public long getDueTime() {
+      return dueTime;
+    }
+  }
+
+  /**
+   * Records that a book is due at a given time, replacing the time
+   * recorded before if the loan was renewed
+   * @param bookId id of the book on loan
+   * @param dueTime time at which the book is due, in milliseconds
+   */
+  public synchronized void add(String bookId, long dueTime) {
+    remove(bookId);
+    Set<String> books = byDueTime.get(dueTime);
+    if (books == null) {
+      books = new LinkedHashSet<String>(2);
+      byDueTime.put(dueTime, books);
+    }
+    books.add(bookId);
+    dueTimes.put(bookId, dueTime);
+  }
+
+  /**
+   * Forgets the loan of a book
+   * @param bookId id of the book returned
+   */
+  public synchronized void remove(String bookId) {
+    Long dueTime = dueTimes.remove(bookId);
+    if (dueTime == null) {
+      return;
+    }
+    Set<String> books = byDueTime.get(dueTime);
+    books.remove(bookId);
+    if (books.isEmpty()) {
+      byDueTime.remove(dueTime);
+    }
+  }
+
+  /**
+   * Returns the books due before a given time, earliest first
+   * @param time the time, in milliseconds
+   * @return the loans due before that time
+   */
+  public synchronized List<Entry> dueBefore(long time) {
+    List<Entry> due = new ArrayList<Entry>();
+    for (Map.Entry<Long, Set<String>> entry : byDueTime.headMap(time, false).entrySet()) {
+      for (String bookId : entry.getValue()) {
+        due.add(new Entry(bookId, entry.getKey()));
+      }
+    }
+    return due;
+  }
+
+  /**
+   * Forgets every loan; used before loading the library
+   */
+  public synchronized void clear() {
+    byDueTime.clear();
+    dueTimes.clear();
+  }
+}
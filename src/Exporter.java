@@ -0,0 +1,287 @@
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.text.*;
+import java.io.*;
+
+/**
+ * Writes the catalog, the members or the transactions of the library as
+ * CSV or as JSON Lines, e.g. for nightly extracts. Rows are written one by
+ * one through a buffered writer as the books and members are visited, so
+ * the memory used does not grow with the number of rows: the collections
+ * are walked a block at a time, and books and members still only in a
+ * mapped snapshot are read from it without being loaded. The fields of a
+ * row are read with the lock of its book or member held, so circulation
+ * goes on during an export. Times are written as ISO 8601 local
+ * date-times.
+ *
+ */
+public class Exporter {
+  public static final int CSV = 1;
+  public static final int JSON_LINES = 2;
+  private static final String[] BOOK_COLUMNS = {"id", "title", "author", "borrower", "due", "holds"};
+  private static final String[] MEMBER_COLUMNS = {"id", "name", "address", "phone", "borrowed", "holds"};
+  private static final String[] TRANSACTION_COLUMNS = {"member", "time", "type", "title"};
+  private Library library;
+  private int format;
+  private Writer output;
+  private String[] columns;
+  private int column;
+  private DateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+
+  /**
+   * Creates an exporter
+   * @param library the library to be exported
+   * @param format CSV or JSON_LINES
+   */
+  public Exporter(Library library, int format) {
+    this.library = library;
+    this.format = format;
+  }
+
+  /**
+   * Picks the format from the name of a file: JSON Lines for .jsonl and
+   * .json, CSV otherwise
+   * @param name name of the file
+   * @return CSV or JSON_LINES
+   */
+  public static int formatOf(String name) {
+    String lower = name.toLowerCase();
+    return lower.endsWith(".jsonl") || lower.endsWith(".json") ? JSON_LINES : CSV;
+  }
+
+  /**
+   * Writes one row per book: id, title, author, borrower, due time and
+   * number of holds
+   * @param writer where the rows are written; it is flushed, not closed
+   * @return the number of rows written
+   * @throws IOException if the rows could not be written
+   */
+  public int exportBooks(Writer writer) throws IOException {
+    start(writer, BOOK_COLUMNS);
+    int rows = 0;
+    for (Iterator<Book> iterator = library.streamBooks(); iterator.hasNext(); rows++) {
+      Book book = iterator.next();
+      Member borrower;
+      long dueTime;
+      int holds;
+      Lock bookLock = Library.bookLock(book.getId());
+      bookLock.lock();
+      try {
+        borrower = book.getBorrower();
+        dueTime = borrower == null ? 0 : book.getDueTime();
+        holds = book.holds.size();
+      } finally {
+        bookLock.unlock();
+      }
+      field(book.getId());
+      field(book.getTitle());
+      field(book.getAuthor());
+      field(borrower == null ? null : borrower.getId());
+      field(borrower == null ? null : time(dueTime));
+      number(holds);
+      endRow();
+    }
+    output.flush();
+    return rows;
+  }
+
+  /**
+   * Writes one row per member: id, name, address, phone, number of books
+   * borrowed and number of holds
+   * @param writer where the rows are written; it is flushed, not closed
+   * @return the number of rows written
+   * @throws IOException if the rows could not be written
+   */
+  public int exportMembers(Writer writer) throws IOException {
+    start(writer, MEMBER_COLUMNS);
+    int rows = 0;
+    for (Iterator<Member> iterator = library.streamMembers(); iterator.hasNext(); rows++) {
+      Member member = iterator.next();
+      String name;
+      String address;
+      String phone;
+      int borrowed;
+      int holds;
+      Lock memberLock = Library.memberLock(member.getId());
+      memberLock.lock();
+      try {
+        name = member.getName();
+        address = member.getAddress();
+        phone = member.getPhone();
+        borrowed = count(member.getBooksIssued());
+        holds = count(member.getBooksOnHold());
+      } finally {
+        memberLock.unlock();
+      }
+      field(member.getId());
+      field(name);
+      field(address);
+      field(phone);
+      number(borrowed);
+      number(holds);
+      endRow();
+    }
+    output.flush();
+    return rows;
+  }
+
+  /**
+   * Writes one row per transaction, member by member: member id, time,
+   * type and title. The history of a member is frozen under its lock (see
+   * TransactionHistory.freeze()) and written after the lock is released.
+   * @param writer where the rows are written; it is flushed, not closed
+   * @return the number of rows written
+   * @throws IOException if the rows could not be written
+   */
+  public int exportTransactions(Writer writer) throws IOException {
+    start(writer, TRANSACTION_COLUMNS);
+    int rows = 0;
+    for (Iterator<Member> members = library.streamMembers(); members.hasNext(); ) {
+      Member member = members.next();
+      TransactionHistory transactions;
+      Lock memberLock = Library.memberLock(member.getId());
+      memberLock.lock();
+      try {
+        transactions = member.freezeTransactions();
+      } finally {
+        memberLock.unlock();
+      }
+      for (int index = 0; index < transactions.size(); index++, rows++) {
+        field(member.getId());
+        field(time(transactions.timeAt(index)));
+        field(transactions.typeAt(index).trim());
+        field(transactions.titleAt(index));
+        endRow();
+      }
+    }
+    output.flush();
+    return rows;
+  }
+
+  /*
+   * Prepares the writer, and writes the header of a CSV file
+   */
+  private void start(Writer writer, String[] names) throws IOException {
+    output = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer, 1 << 16);
+    columns = names;
+    column = 0;
+    if (format == CSV) {
+      for (String name : names) {
+        field(name);
+      }
+      endRow();
+    }
+  }
+
+  /*
+   * Writes a string field; null stands for a missing value
+   */
+  private void field(String value) throws IOException {
+    separate();
+    if (format == CSV) {
+      if (value != null) {
+        csv(value);
+      }
+    } else if (value == null) {
+      output.write("null");
+    } else {
+      json(value);
+    }
+  }
+
+  /*
+   * Writes a number field
+   */
+  private void number(int value) throws IOException {
+    separate();
+    output.write(Integer.toString(value));
+  }
+
+  /*
+   * Writes what comes before a field: a comma, and the name in JSON
+   */
+  private void separate() throws IOException {
+    if (format == CSV) {
+      if (column > 0) {
+        output.write(',');
+      }
+    } else {
+      output.write(column == 0 ? "{" : ",");
+      json(columns[column]);
+      output.write(':');
+    }
+    column++;
+  }
+
+  /*
+   * Ends the current row
+   */
+  private void endRow() throws IOException {
+    if (format == JSON_LINES) {
+      output.write('}');
+    }
+    output.write('\n');
+    column = 0;
+  }
+
+  /*
+   * Writes a CSV field, quoting it if needed
+   */
+  private void csv(String value) throws IOException {
+    boolean quote = false;
+    for (int index = 0; index < value.length() && !quote; index++) {
+      char character = value.charAt(index);
+      quote = character == ',' || character == '"' || character == '\n' || character == '\r';
+    }
+    if (!quote && (value.isEmpty() || value.charAt(0) != ' ' && value.charAt(value.length() - 1) != ' ')) {
+      output.write(value);
+      return;
+    }
+    output.write('"');
+    for (int index = 0; index < value.length(); index++) {
+      char character = value.charAt(index);
+      if (character == '"') {
+        output.write('"');
+      }
+      output.write(character);
+    }
+    output.write('"');
+  }
+
+  /*
+   * Writes a JSON string
+   */
+  private void json(String value) throws IOException {
+    output.write('"');
+    for (int index = 0; index < value.length(); index++) {
+      char character = value.charAt(index);
+      if (character == '"' || character == '\\') {
+        output.write('\\');
+        output.write(character);
+      } else if (character < 0x20) {
+        output.write(String.format("\\u%04x", (int) character));
+      } else {
+        output.write(character);
+      }
+    }
+    output.write('"');
+  }
+
+  /*
+   * Formats a time
+   */
+  private String time(long time) {
+    return timeFormat.format(new Date(time));
+  }
+
+  /*
+   * Counts the elements of an iterator
+   */
+  private static int count(Iterator<?> iterator) {
+    int count = 0;
+    for (; iterator.hasNext(); iterator.next()) {
+      count++;
+    }
+    return count;
+  }
+}
@@ -25,6 +25,7 @@ import java.io.*;
  *
  */
 public class Hold implements Serializable {
+  private static final long serialVersionUID = -8431714659207903819L;
   private Book book;
   private Member member;
   private Calendar date;
@@ -39,9 +40,21 @@ public class Hold implements Serializable {
     this.book = book;
     this.member = member;
     date = new GregorianCalendar();
-    date.setTimeInMillis(System.currentTimeMillis());
+    date.setTimeInMillis(LibraryClock.now());
     date.add(Calendar.DATE, duration);
   }
+  /**
+   * Recreates a hold that expires at a known time; used when loading a snapshot
+   * @param member who placed the hold
+   * @param book the book on which hold is placed
+   * @param expiry time until which the hold is valid, in milliseconds
+   */
+  Hold(Member member, Book book, long expiry) {
+    this.book = book;
+    this.member = member;
+    date = new GregorianCalendar();
+    date.setTimeInMillis(expiry);
+  }
   /**
    * Getter for Member
    * @return Member who has the hold
@@ -68,7 +81,7 @@ public class Hold implements Serializable {
    * @return true iff the hold is valid
    */
   public boolean isValid(){
-    return (System.currentTimeMillis() < date.getTimeInMillis());
+    return (LibraryClock.now() < date.getTimeInMillis());
   }
 }
 
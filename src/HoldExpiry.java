@@ -0,0 +1,94 @@
+import java.util.*;
+
+/**
+ * Holds ordered by the time they expire, so that expiring them only
+ * touches the holds actually due. Holds are grouped into one-minute
+ * buckets kept in a TreeMap; a bucket is handed out once the whole minute
+ * it covers has passed, which makes a hold expire at most a minute late.
+ * Holds that end earlier, because they were processed or removed, are not
+ * taken out of their bucket: the caller checks that a hold handed out
+ * still exists before removing it.
+ *
+ */
+public class HoldExpiry {
+  private static final long TICK = 60 * 1000L;
+  private TreeMap<Long, List<Entry>> buckets = new TreeMap<Long, List<Entry>>();
+
+  /**
+   * A hold due to expire, identified by its book, its member and its
+   * expiry time
+   */
+  public static class Entry {
+    private String bookId;
+    private String memberId;
+    private long expiry;
+
+    private Entry(String bookId, String memberId, long expiry) {
+      this.bookId = bookId;
+      this.memberId = memberId;
+      this.expiry = expiry;
+    }
+
+    /**
+     * Getter for the book id
+     * @return id of the book held
+     */
+    public String getBookId() {
+      return bookId;
+    }
+
+    /**
+     * Getter for the member id
+     * @return id of the member holding the book
+     */
+    public String getMemberId() {
+      return memberId;
+    }
+
+    /**
+     * Getter for the expiry time
+     * @return time at which the hold expires, in milliseconds
+     */
+    public long getExpiry() {
+      return expiry;
+    }
+  }
+
+  /**
+   * Records a hold
+   * @param bookId id of the book held
+   * @param memberId id of the member holding the book
+   * @param expiry time at which the hold expires, in milliseconds
+   */
+  public synchronized void add(String bookId, String memberId, long expiry) {
+    Long bucket = Math.floorDiv(expiry, TICK) + 1;
+    List<Entry> entries = buckets.get(bucket);
+    if (entries == null) {
+      entries = new ArrayList<Entry>();
+      buckets.put(bucket, entries);
+    }
+    entries.add(new Entry(bookId, memberId, expiry));
+  }
+
+  /**
+   * Removes and returns the holds that have expired
+   * @param now the current time, in milliseconds
+   * @return the holds of every bucket that has passed
+   */
+  public synchronized List<Entry> expire(long now) {
+    List<Entry> expired = new ArrayList<Entry>();
+    SortedMap<Long, List<Entry>> due = buckets.headMap(Math.floorDiv(now, TICK), true);
+    for (List<Entry> entries : due.values()) {
+      expired.addAll(entries);
+    }
+    due.clear();
+    return expired;
+  }
+
+  /**
+   * Forgets every hold; used before loading the library
+   */
+  public synchronized void clear() {
+    buckets.clear();
+  }
+}
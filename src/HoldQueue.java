@@ -0,0 +1,222 @@
+import java.util.*;
+import java.io.*;
+
+/**
+ * The holds on a single book, in the order they were placed. The holds
+ * form a doubly linked list, and every member's holds are also reachable
+ * through a map keyed on the member id, so a hold is added or removed in
+ * constant time however many holds the book carries. Expired holds are
+ * dropped from the front of the queue as they are met, each one only once.
+ * The map is rebuilt from the list when first needed, because holds read
+ * back from a stream may refer to members whose ids are not set yet.
+ *
+ */
+public class HoldQueue implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private transient Node first;
+  private transient Node last;
+  private transient int size;
+  private transient Map<String, ArrayDeque<Node>> byMember;
+
+  /*
+   * A hold and its neighbours in the queue
+   */
+  private static class Node {
+    private Hold hold;
+    private Node previous;
+    private Node next;
+
+    private Node(Hold hold) {
+      this.hold = hold;
+    }
+  }
+
+  /**
+   * Adds a hold at the end of the queue
+   * @param hold the new hold
+   */
+  public void add(Hold hold) {
+    Node node = new Node(hold);
+    node.previous = last;
+    if (last == null) {
+      first = node;
+    } else {
+      last.next = node;
+    }
+    last = node;
+    size++;
+    if (byMember != null) {
+      index(node);
+    }
+  }
+
+  /**
+   * Removes the oldest hold placed by a member
+   * @param memberId id of the member
+   * @return the hold removed, or null if the member has no hold in the queue
+   */
+  public Hold remove(String memberId) {
+    ArrayDeque<Node> nodes = byMember().get(memberId);
+    if (nodes == null) {
+      return null;
+    }
+    Node node = nodes.peekFirst();
+    unlink(node);
+    return node.hold;
+  }
+
+  /**
+   * Removes the hold a member placed with a given expiry time
+   * @param memberId id of the member
+   * @param expiry time at which the hold expires, in milliseconds
+   * @return the hold removed, or null if there is no such hold
+   */
+  public Hold remove(String memberId, long expiry) {
+    ArrayDeque<Node> nodes = byMember().get(memberId);
+    if (nodes == null) {
+      return null;
+    }
+    for (Node node : nodes) {
+      if (node.hold.getDate().getTimeInMillis() == expiry) {
+        unlink(node);
+        return node.hold;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes and returns the first hold still valid. The expired holds in
+   * front of it are removed as well.
+   * @return the next valid hold, or null if there is none
+   */
+  public Hold poll() {
+    while (first != null) {
+      Node node = first;
+      unlink(node);
+      if (node.hold.isValid()) {
+        return node.hold;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks whether the queue holds no hold
+   * @return true iff the queue is empty
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the number of holds in the queue
+   * @return number of holds
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns an iterator over the holds, oldest first
+   * @return iterator for the holds
+   */
+  public Iterator<Hold> iterator() {
+    return new Iterator<Hold>() {
+      private Node next = first;
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public Hold next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Hold hold = next.hold;
+        next = next.next;
+        return hold;
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /*
+   * Returns the map from member ids to their holds, building it if needed
+   */
+  private Map<String, ArrayDeque<Node>> byMember() {
+    if (byMember == null) {
+      byMember = new HashMap<String, ArrayDeque<Node>>();
+      for (Node node = first; node != null; node = node.next) {
+        index(node);
+      }
+    }
+    return byMember;
+  }
+
+  /*
+   * Adds a node at the end of its member's holds
+   */
+  private void index(Node node) {
+    String memberId = node.hold.getMember().getId();
+    ArrayDeque<Node> nodes = byMember.get(memberId);
+    if (nodes == null) {
+      nodes = new ArrayDeque<Node>(1);
+      byMember.put(memberId, nodes);
+    }
+    nodes.addLast(node);
+  }
+
+  /*
+   * Takes a node out of the list and out of the member map. The node is
+   * usually the oldest of its member, so the search in the member's nodes
+   * stops at once.
+   */
+  private void unlink(Node node) {
+    if (node.previous == null) {
+      first = node.next;
+    } else {
+      node.previous.next = node.next;
+    }
+    if (node.next == null) {
+      last = node.previous;
+    } else {
+      node.next.previous = node.previous;
+    }
+    node.previous = null;
+    node.next = null;
+    size--;
+    if (byMember != null) {
+      String memberId = node.hold.getMember().getId();
+      ArrayDeque<Node> nodes = byMember.get(memberId);
+      nodes.removeFirstOccurrence(node);
+      if (nodes.isEmpty()) {
+        byMember.remove(memberId);
+      }
+    }
+  }
+
+  /*
+   * Writes the holds in order
+   */
+  private void writeObject(ObjectOutputStream output) throws IOException {
+    output.defaultWriteObject();
+    output.writeInt(size);
+    for (Node node = first; node != null; node = node.next) {
+      output.writeObject(node.hold);
+    }
+  }
+
+  /*
+   * Reads the holds back; the member map is rebuilt on first use
+   */
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    input.defaultReadObject();
+    for (int count = input.readInt(); count > 0; count--) {
+      add((Hold) input.readObject());
+    }
+  }
+}
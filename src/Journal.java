@@ -0,0 +1,325 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the operations applied to the library since the last
+ * snapshot. Every record carries the operation code, the time at which the
+ * operation happened and its string arguments, and is protected by a
+ * length prefix and a checksum so that a record torn by a crash is
+ * detected and dropped on replay.
+ * Appending threads share fsyncs: the first one to commit forces every
+ * record written so far, and the others waiting for the same records
+ * return as soon as it is done (group commit).
+ * The header of a journal names its generation and the generation it
+ * continues, so that replay follows one library's chain of journals and
+ * stops at a journal started by another library.
+ *
+ */
+public class Journal {
+  public static final byte ADD_BOOK = 1;
+  public static final byte ADD_MEMBER = 2;
+  public static final byte ISSUE_BOOK = 3;
+  public static final byte RETURN_BOOK = 4;
+  public static final byte RENEW_BOOK = 5;
+  public static final byte PLACE_HOLD = 6;
+  public static final byte REMOVE_HOLD = 7;
+  public static final byte PROCESS_HOLD = 8;
+  public static final byte REMOVE_BOOK = 9;
+  public static final byte EXPIRE_HOLD = 10;
+  private static final int MAGIC = 0x4C424A32;
+  private static final int HEADER_SIZE = 20;
+  private FileChannel channel;
+  private DataOutputStream output;
+  private long generation;
+  private long parent;
+  private long appended;
+  private long durable;
+  private boolean flushing;
+
+  /**
+   * Represents a single journal record
+   */
+  public static class Record {
+    private byte operation;
+    private long time;
+    private String[] arguments;
+
+    private Record(byte operation, long time, String[] arguments) {
+      this.operation = operation;
+      this.time = time;
+      this.arguments = arguments;
+    }
+
+    /**
+     * Getter for the operation code
+     * @return one of the operation constants of Journal
+     */
+    public byte getOperation() {
+      return operation;
+    }
+
+    /**
+     * Getter for the time of the operation
+     * @return milliseconds since the epoch
+     */
+    public long getTime() {
+      return time;
+    }
+
+    /**
+     * Getter for an argument
+     * @param index position of the argument
+     * @return the argument
+     */
+    public String getArgument(int index) {
+      return arguments[index];
+    }
+  }
+
+  /*
+   * Opens the journal positioned after its last record
+   */
+  private Journal(FileChannel channel, long generation, long parent, long end) throws IOException {
+    this.channel = channel;
+    this.generation = generation;
+    this.parent = parent;
+    channel.position(end);
+    output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  /**
+   * Creates an empty journal, discarding any existing file
+   * @param file the journal file
+   * @param generation generation of the snapshot the journal follows
+   * @param parent generation of the journal this one continues; -1 for
+   * the first journal of a new library
+   * @return the journal
+   * @throws IOException if the file cannot be written
+   */
+  public static Journal create(File file, long generation, long parent) throws IOException {
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    channel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putLong(generation).putLong(parent).flip();
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+    channel.force(true);
+    return new Journal(channel, generation, parent, HEADER_SIZE);
+  }
+
+  /**
+   * Tells whether a journal file was started for a generation as the
+   * continuation of another one. The file is only read.
+   * @param file the journal file
+   * @param generation generation the journal should have
+   * @param parent generation the journal should continue
+   * @return true iff the file is such a journal
+   */
+  public static boolean continues(File file, long generation, long parent) {
+    if (!file.exists()) {
+      return false;
+    }
+    try {
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        return input.readInt() == MAGIC && input.readLong() == generation && input.readLong() == parent;
+      } finally {
+        input.close();
+      }
+    } catch (IOException ioe) {
+      return false;
+    }
+  }
+
+  /**
+   * Opens an existing journal and reads its records. A torn record at the
+   * end is cut off. If the file is missing, is not a journal or belongs to
+   * another snapshot generation or lineage, a new empty journal is created
+   * instead.
+   * @param file the journal file
+   * @param generation generation of the snapshot just loaded
+   * @param parent generation of the journal this one continues
+   * @param records list receiving the records to be replayed
+   * @return the journal, ready for appending
+   * @throws IOException if the file cannot be read or written
+   */
+  public static Journal open(File file, long generation, long parent, List<Record> records) throws IOException {
+    if (!file.exists()) {
+      return create(file, generation, parent);
+    }
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    long end = HEADER_SIZE;
+    try {
+      if (input.readInt() != MAGIC || input.readLong() != generation || input.readLong() != parent) {
+        channel.close();
+        return create(file, generation, parent);
+      }
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length = input.readInt();
+        int checksum = input.readInt();
+        if (length <= 0 || end + 8 + length > channel.size()) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        records.add(decode(payload));
+        end += 8 + length;
+      }
+    } catch (EOFException eofe) {
+      // end of the last complete record reached
+    }
+    channel.truncate(end);
+    return new Journal(channel, generation, parent, end);
+  }
+
+  /**
+   * Getter for the generation
+   * @return generation of the snapshot this journal follows
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Appends a record and waits until it is on disk
+   * @param operation operation code
+   * @param time time of the operation
+   * @param arguments arguments of the operation
+   * @throws IOException if the record could not be written
+   */
+  public void append(byte operation, long time, String... arguments) throws IOException {
+    commit(write(operation, time, arguments));
+  }
+
+  /**
+   * Appends a record without waiting for it to reach the disk. Callers
+   * writing many records pass the sequence number of the last one to
+   * sync(), so that a single fsync covers all of them.
+   * @param operation operation code
+   * @param time time of the operation
+   * @param arguments arguments of the operation
+   * @return the sequence number of the record
+   * @throws IOException if the record could not be written
+   */
+  public long write(byte operation, long time, String... arguments) throws IOException {
+    byte[] payload = encode(operation, time, arguments);
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    synchronized (this) {
+      output.writeInt(payload.length);
+      output.writeInt((int) crc.getValue());
+      output.write(payload);
+      return ++appended;
+    }
+  }
+
+  /**
+   * Waits until a record written earlier, and all the records before it,
+   * are on disk
+   * @param sequence the sequence number returned by write()
+   * @throws IOException if the journal could not be forced
+   */
+  public void sync(long sequence) throws IOException {
+    commit(sequence);
+  }
+
+  /**
+   * Forces the records written so far to disk and closes the journal file
+   * @throws IOException if the file could not be closed
+   */
+  public synchronized void close() throws IOException {
+    output.flush();
+    if (channel.isOpen()) {
+      channel.force(false);
+      durable = appended;
+      notifyAll();
+    }
+    channel.close();
+  }
+
+  /*
+   * Waits until the record with the given sequence number is on disk,
+   * forcing the file if no other thread is doing so
+   */
+  private void commit(long sequence) throws IOException {
+    long target;
+    synchronized (this) {
+      while (durable < sequence && flushing) {
+        try {
+          wait();
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while committing the journal");
+        }
+      }
+      if (durable >= sequence) {
+        return;
+      }
+      flushing = true;
+      target = appended;
+    }
+    boolean forced = false;
+    try {
+      synchronized (this) {
+        output.flush();
+      }
+      channel.force(false);
+      forced = true;
+    } catch (ClosedChannelException cce) {
+      // close() forces the journal; the record is safe if it got there first
+      synchronized (this) {
+        if (durable < sequence) {
+          throw cce;
+        }
+      }
+    } finally {
+      synchronized (this) {
+        if (forced) {
+          durable = Math.max(durable, target);
+        }
+        flushing = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /*
+   * Encodes the body of a record
+   */
+  private static byte[] encode(byte operation, long time, String[] arguments) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(operation);
+    data.writeLong(time);
+    data.writeByte(arguments.length);
+    for (String argument : arguments) {
+      data.writeUTF(argument);
+    }
+    return bytes.toByteArray();
+  }
+
+  /*
+   * Decodes the body of a record
+   */
+  private static Record decode(byte[] payload) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+    byte operation = data.readByte();
+    long time = data.readLong();
+    String[] arguments = new String[data.readUnsignedByte()];
+    for (int index = 0; index < arguments.length; index++) {
+      arguments[index] = data.readUTF();
+    }
+    return new Record(operation, time, arguments);
+  }
+}
@@ -0,0 +1,290 @@
+import java.util.*;
+
+/**
+ * Library-wide record of every transaction of every member, ordered by
+ * time, for reports such as all the checkouts of a morning. Members add
+ * their transactions as they happen, so a report never has to visit the
+ * members themselves. The entries are stored in columns like those of
+ * TransactionHistory, with the member id as an extra column, and are kept
+ * in time order: appends from concurrent threads may arrive slightly out of
+ * order, and such an entry is moved back to its place among the last ones.
+ * Only the transactions of a library being loaded are sorted in bulk.
+ * After a snapshot is loaded, the transactions it contains are only read
+ * into the ledger on the first scan.
+ *
+ */
+public class Ledger {
+  private static Ledger ledger;
+  private String[] memberIds = new String[0];
+  private byte[] codes = new byte[0];
+  private String[] titles = new String[0];
+  private long[] times = new long[0];
+  private int size;
+  private boolean sorted = true;
+  private MappedSnapshot snapshot;
+
+  /**
+   * A transaction together with the member who made it
+   */
+  public static class Entry {
+    private String memberId;
+    private Transaction transaction;
+
+    private Entry(String memberId, Transaction transaction) {
+      this.memberId = memberId;
+      this.transaction = transaction;
+    }
+
+    /**
+     * Getter for the member id
+     * @return id of the member who made the transaction
+     */
+    public String getMemberId() {
+      return memberId;
+    }
+
+    /**
+     * Getter for the transaction
+     * @return the transaction
+     */
+    public Transaction getTransaction() {
+      return transaction;
+    }
+
+    /**
+     * String form of the entry
+     *
+     */
+    @Override
+    public String toString() {
+      return memberId + "   " + transaction;
+    }
+  }
+
+  /*
+   * Private constructor for singleton pattern
+   */
+  private Ledger() {
+  }
+
+  /**
+   * Supports the singleton pattern
+   * @return the singleton object
+   */
+  public static synchronized Ledger instance() {
+    if (ledger == null) {
+      return (ledger = new Ledger());
+    } else {
+      return ledger;
+    }
+  }
+
+  /**
+   * Records a transaction
+   * @param memberId id of the member who made the transaction
+   * @param transaction the transaction
+   */
+  public synchronized void add(String memberId, Transaction transaction) {
+    add(memberId, transaction.getType(), transaction.getTitle(), transaction.getTime());
+  }
+
+  /**
+   * Records a transaction
+   * @param memberId id of the member who made the transaction
+   * @param type the type of transaction
+   * @param title the title of the book
+   * @param time when the transaction happened, in milliseconds
+   */
+  public synchronized void add(String memberId, String type, String title, long time) {
+    grow();
+    int position = size;
+    if (size > 0 && times[size - 1] > time) {
+      sort();
+      position = after(time);
+      System.arraycopy(memberIds, position, memberIds, position + 1, size - position);
+      System.arraycopy(codes, position, codes, position + 1, size - position);
+      System.arraycopy(titles, position, titles, position + 1, size - position);
+      System.arraycopy(times, position, times, position + 1, size - position);
+    }
+    memberIds[position] = memberId;
+    codes[position] = TransactionHistory.code(type);
+    titles[position] = title;
+    times[position] = time;
+    size++;
+  }
+
+  /**
+   * Records a transaction of a library being loaded. The transactions of
+   * a saved library come member by member, so they are appended as they
+   * come and sorted once, by the next scan.
+   * @param memberId id of the member who made the transaction
+   * @param type the type of transaction
+   * @param title the title of the book
+   * @param time when the transaction happened, in milliseconds
+   */
+  synchronized void restore(String memberId, String type, String title, long time) {
+    grow();
+    if (size > 0 && times[size - 1] > time) {
+      sorted = false;
+    }
+    memberIds[size] = memberId;
+    codes[size] = TransactionHistory.code(type);
+    titles[size] = title;
+    times[size] = time;
+    size++;
+  }
+
+  /**
+   * Returns the transactions of a period, optionally of one type only
+   * @param from start of the period, in milliseconds
+   * @param to end of the period, in milliseconds, excluded
+   * @param type the type of transaction wanted, or null for every type
+   * @return iterator to the entries, oldest first
+   */
+  public synchronized Iterator<Entry> scan(long from, long to, String type) {
+    load();
+    sort();
+    List<Entry> result = new ArrayList<Entry>();
+    int code = type == null ? -1 : TransactionHistory.find(type);
+    if (type != null && code < 0) {
+      return result.iterator();
+    }
+    for (int index = first(from); index < size && times[index] < to; index++) {
+      if (code < 0 || codes[index] == code) {
+        result.add(new Entry(memberIds[index], new Transaction(TransactionHistory.type(codes[index]),
+            titles[index], times[index])));
+      }
+    }
+    return result.iterator();
+  }
+
+  /**
+   * Forgets every transaction; used before loading the library
+   */
+  synchronized void clear() {
+    memberIds = new String[0];
+    codes = new byte[0];
+    titles = new String[0];
+    times = new long[0];
+    size = 0;
+    sorted = true;
+    snapshot = null;
+  }
+
+  /**
+   * Takes the transactions of a mapped snapshot; they are read on the
+   * first scan
+   * @param snapshot the snapshot, loaded into an empty ledger
+   */
+  synchronized void attach(MappedSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  /*
+   * Reads the transactions of the snapshot, if any are still to be read
+   */
+  private void load() {
+    if (snapshot != null) {
+      MappedSnapshot pending = snapshot;
+      snapshot = null;
+      pending.scanTransactions(this);
+    }
+  }
+
+  /*
+   * Makes room for one more transaction
+   */
+  private void grow() {
+    if (size == times.length) {
+      int capacity = Math.max(16, size + (size >> 1));
+      memberIds = Arrays.copyOf(memberIds, capacity);
+      codes = Arrays.copyOf(codes, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      times = Arrays.copyOf(times, capacity);
+    }
+  }
+
+  /*
+   * Puts the transactions of a loaded library in time order, with a
+   * stable merge sort of their positions, so transactions at the same time
+   * keep the order in which they were added
+   */
+  private void sort() {
+    if (sorted) {
+      return;
+    }
+    int[] order = new int[size];
+    int[] buffer = new int[size];
+    for (int index = 0; index < size; index++) {
+      order[index] = index;
+    }
+    for (int width = 1; width < size; width <<= 1) {
+      for (int low = 0; low < size; low += width << 1) {
+        int middle = Math.min(low + width, size);
+        int high = Math.min(low + (width << 1), size);
+        int left = low;
+        int right = middle;
+        for (int index = low; index < high; index++) {
+          if (left < middle && (right >= high || times[order[left]] <= times[order[right]])) {
+            buffer[index] = order[left++];
+          } else {
+            buffer[index] = order[right++];
+          }
+        }
+      }
+      int[] swap = order;
+      order = buffer;
+      buffer = swap;
+    }
+    String[] sortedMemberIds = new String[times.length];
+    byte[] sortedCodes = new byte[times.length];
+    String[] sortedTitles = new String[times.length];
+    long[] sortedTimes = new long[times.length];
+    for (int index = 0; index < size; index++) {
+      sortedMemberIds[index] = memberIds[order[index]];
+      sortedCodes[index] = codes[order[index]];
+      sortedTitles[index] = titles[order[index]];
+      sortedTimes[index] = times[order[index]];
+    }
+    memberIds = sortedMemberIds;
+    codes = sortedCodes;
+    titles = sortedTitles;
+    times = sortedTimes;
+    sorted = true;
+  }
+
+  /*
+   * Returns the position following the last transaction at or before a
+   * time
+   */
+  private int after(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (times[middle] <= time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * Returns the position of the first transaction at or after a time
+   */
+  private int first(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (times[middle] < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
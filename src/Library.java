@@ -18,6 +18,8 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.io.*;
 
 public class Library implements Serializable {
@@ -31,9 +33,33 @@ public class Library implements Serializable {
   public static final int OPERATION_COMPLETED = 7;
   public static final int OPERATION_FAILED = 8;
   public static final int NO_SUCH_MEMBER = 9;
+  private static final String DATA_FILE = "LibraryData";
+  private static final String JOURNAL_FILE = "LibraryJournal";
   public Catalog catalog;
   public MemberList memberList;
+  private long generation;
+  private transient long parent;
+  private transient Journal journal;
+  private transient boolean replaying;
   private static Library library;
+  private static ExecutorService saver;
+  private static ScheduledExecutorService expirer;
+  private static final HoldExpiry holdExpiry = new HoldExpiry();
+  private static final DueIndex dueIndex = new DueIndex();
+  private static final ThreadLocal<Batch> batches = new ThreadLocal<Batch>();
+  private static volatile int retrievals;
+
+  /*
+   * The journal records a thread wrote inside a batch; they are forced to
+   * disk together when the outermost batch ends
+   */
+  private static class Batch {
+    private int depth;
+    private Journal journal;
+    private long sequence;
+  }
+  private static final LockStripes bookLocks = new LockStripes(64);
+  private static final LockStripes memberLocks = new LockStripes(64);
 
   /**
    * Private for the singleton pattern
@@ -42,6 +68,8 @@ public class Library implements Serializable {
   private Library() {
     catalog = Catalog.instance();
     memberList = MemberList.instance();
+    generation = lastJournalGeneration() + 1;
+    parent = -1;
   }
 
   /**
@@ -52,7 +80,9 @@ public class Library implements Serializable {
   public static Library instance() {
     if (library == null) {
       MemberIdServer.instance(); // instantiate all singletons
-      return (library = new Library());
+      library = new Library();
+      startExpirer();
+      return library;
     } else {
       return library;
     }
@@ -74,11 +104,78 @@ public class Library implements Serializable {
    * @return the Book object created
    */
   public Book addBook(String title, String author, String id) {
-    Book book = new Book(title, author, id);
-    if (catalog.insertBook(book)) {
-      return (book);
+    Lock bookLock = bookLocks.get(id);
+    bookLock.lock();
+    try {
+      Book book = new Book(title, author, id);
+      if (catalog.insertBook(book)) {
+        log(Journal.ADD_BOOK, title, author, id);
+        return (book);
+      }
+      return null;
+    } finally {
+      bookLock.unlock();
+    }
+  }
+
+  /**
+   * Adds many books, forcing the journal to disk once for all of them
+   * @param books title, author and id of each book
+   * @return the number of books added; books whose id is in use are skipped
+   */
+  public int addBooks(List<String[]> books) {
+    int added = 0;
+    beginBatch();
+    try {
+      for (String[] book : books) {
+        if (addBook(book[0], book[1], book[2]) != null) {
+          added++;
+        }
+      }
+    } finally {
+      endBatch();
     }
-    return null;
+    return added;
+  }
+
+  /**
+   * Searches the titles and authors of the catalog
+   * @param query words to look for
+   * @param limit maximum number of books returned
+   * @return iterator to the matching books, best match first
+   */
+  public Iterator<Book> searchBooks(String query, int limit) {
+    return catalog.searchText(query, limit);
+  }
+
+  /**
+   * Type-ahead completion of book titles
+   * @param prefix the beginning of the title
+   * @param completions array receiving the matching titles
+   * @return the number of titles copied into the array
+   */
+  public int completeTitle(String prefix, String[] completions) {
+    return catalog.completeTitle(prefix, completions);
+  }
+
+  /**
+   * Type-ahead completion of author names
+   * @param prefix the beginning of the author name
+   * @param completions array receiving the matching names
+   * @return the number of names copied into the array
+   */
+  public int completeAuthor(String prefix, String[] completions) {
+    return catalog.completeAuthor(prefix, completions);
+  }
+
+  /**
+   * Type-ahead completion of member names
+   * @param prefix the beginning of the member name
+   * @param completions array receiving the matching names
+   * @return the number of names copied into the array
+   */
+  public int completeMemberName(String prefix, String[] completions) {
+    return memberList.completeName(prefix, completions);
   }
 
   /**
@@ -86,14 +183,62 @@ public class Library implements Serializable {
    * @param name member name
    * @param address member address
    * @param phone member phone
-   * @return the Member object created
+   * @return the Member object created; null if no id could be reserved for it
    */
   public Member addMember(String name, String address, String phone) {
-    Member member = new Member(name, address, phone);
-    if (memberList.insertMember(member)) {
-      return (member);
+    Member member;
+    try {
+      member = new Member(name, address, phone);
+    } catch (IllegalStateException ise) {
+      ise.printStackTrace();
+      return (null);
+    }
+    return insertMember(member);
+  }
+
+  /**
+   * Adds many members, forcing the journal to disk once for all of them.
+   * Members may bring the id they had in another system, e.g. when
+   * migrating; the ids handed out later stay clear of them.
+   * @param members name, address, phone and optionally id of each member
+   * @return the number of members added; members whose id is in use are skipped
+   */
+  public int addMembers(List<String[]> members) {
+    int added = 0;
+    beginBatch();
+    try {
+      for (String[] member : members) {
+        if (member.length > 3) {
+          if (insertMember(new Member(member[0], member[1], member[2], member[3])) != null) {
+            MemberIdServer.instance().reserve(member[3]);
+            added++;
+          }
+        } else if (addMember(member[0], member[1], member[2]) != null) {
+          added++;
+        }
+      }
+    } finally {
+      endBatch();
+    }
+    return added;
+  }
+
+  /*
+   * Inserts a new member and journals it, holding the member's lock so
+   * that no operation on the member can be journaled before it
+   */
+  private Member insertMember(Member member) {
+    Lock memberLock = memberLocks.get(member.getId());
+    memberLock.lock();
+    try {
+      if (memberList.insertMember(member)) {
+        log(Journal.ADD_MEMBER, member.getName(), member.getAddress(), member.getPhone(), member.getId());
+        return (member);
+      }
+      return null;
+    } finally {
+      memberLock.unlock();
     }
-    return null;
   }
 
   /**
@@ -104,21 +249,32 @@ public class Library implements Serializable {
    * @return indication on the outcome
    */
   public int placeHold(String memberId, String bookId, int duration) {
-    Book book = catalog.search(bookId);
-    if (book == null) {
-      return (BOOK_NOT_FOUND);
-    }
-    if (book.getBorrower() == null) {
-      return (BOOK_NOT_ISSUED);
-    }
-    Member member = memberList.search(memberId);
-    if (member == null) {
-      return (NO_SUCH_MEMBER);
+    Lock bookLock = bookLocks.get(bookId);
+    Lock memberLock = memberLocks.get(memberId);
+    bookLock.lock();
+    memberLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      if (book.getBorrower() == null) {
+        return (BOOK_NOT_ISSUED);
+      }
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (NO_SUCH_MEMBER);
+      }
+      Hold hold = new Hold(member, book, duration);
+      book.placeHold(hold);
+      member.placeHold(hold);
+      holdExpiry.add(bookId, memberId, hold.getDate().getTimeInMillis());
+      log(Journal.PLACE_HOLD, memberId, bookId, Integer.toString(duration));
+      return (HOLD_PLACED);
+    } finally {
+      memberLock.unlock();
+      bookLock.unlock();
     }
-    Hold hold = new Hold(member, book, duration);
-    book.placeHold(hold);
-    member.placeHold(hold);
-    return (HOLD_PLACED);
   }
 
   /**
@@ -136,17 +292,31 @@ public class Library implements Serializable {
    * @return the member who should be notified
    */
   public Member processHold(String bookId) {
-    Book book = catalog.search(bookId);
-    if (book == null) {
-      return (null);
-    }
-    Hold hold = book.getNextHold();
-    if (hold == null) {
-      return (null);
+    Lock bookLock = bookLocks.get(bookId);
+    bookLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (null);
+      }
+      Hold hold = book.getNextHold();
+      if (hold == null) {
+        log(Journal.PROCESS_HOLD, bookId);
+        return (null);
+      }
+      Lock memberLock = memberLocks.get(hold.getMember().getId());
+      memberLock.lock();
+      try {
+        log(Journal.PROCESS_HOLD, bookId);
+        hold.getMember().removeHold(bookId);
+        hold.getBook().removeHold(hold.getMember().getId());
+        return (hold.getMember());
+      } finally {
+        memberLock.unlock();
+      }
+    } finally {
+      bookLock.unlock();
     }
-    hold.getMember().removeHold(bookId);
-    hold.getBook().removeHold(hold.getMember().getId());
-    return (hold.getMember());
   }
 
   /**
@@ -156,32 +326,188 @@ public class Library implements Serializable {
    * @return result of the operation
    */
   public int removeHold(String memberId, String bookId) {
-    Member member = memberList.search(memberId);
-    if (member == null) {
-      return (NO_SUCH_MEMBER);
+    Lock bookLock = bookLocks.get(bookId);
+    Lock memberLock = memberLocks.get(memberId);
+    bookLock.lock();
+    memberLock.lock();
+    try {
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (NO_SUCH_MEMBER);
+      }
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      log(Journal.REMOVE_HOLD, memberId, bookId);
+      return member.removeHold(bookId) && book.removeHold(memberId) ? OPERATION_COMPLETED : NO_HOLD_FOUND;
+    } finally {
+      memberLock.unlock();
+      bookLock.unlock();
     }
-    Book book = catalog.search(bookId);
-    if (book == null) {
-      return (BOOK_NOT_FOUND);
+  }
+
+  /*
+   * Removes the holds that have expired since the last run, from both
+   * the book and the member
+   */
+  private void expireHolds() {
+    for (HoldExpiry.Entry entry : holdExpiry.expire(LibraryClock.now())) {
+      expireHold(entry.getBookId(), entry.getMemberId(), entry.getExpiry());
     }
-    return member.removeHold(bookId) && book.removeHold(memberId) ? OPERATION_COMPLETED : NO_HOLD_FOUND;
   }
 
   /*
-   * Removes all out-of-date holds
-   */
-  private void removeInvalidHolds() {
-    for (Iterator catalogIterator = catalog.getBooks(); catalogIterator.hasNext(); ) {
-      for (Iterator iterator = ((Book) catalogIterator.next()).getHolds(); iterator.hasNext(); ) {
-        Hold hold = (Hold) iterator.next();
-        if (!hold.isValid()) {
-          hold.getBook().removeHold(hold.getMember().getId());
-          hold.getMember().removeHold(hold.getBook().getId());
+   * Removes a single expired hold from the book and from the member,
+   * unless it has already been processed or removed. processHold drops
+   * expired holds from the book only, so the member's side may be all
+   * that is left.
+   */
+  private void expireHold(String bookId, String memberId, long expiry) {
+    Lock bookLock = bookLocks.get(bookId);
+    Lock memberLock = memberLocks.get(memberId);
+    bookLock.lock();
+    memberLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      Hold hold = book == null ? null : book.removeHold(memberId, expiry);
+      boolean removed;
+      if (hold != null) {
+        removed = hold.getMember().removeHold(hold);
+      } else {
+        Member member = memberList.search(memberId);
+        removed = member != null && member.removeHold(bookId, expiry);
+      }
+      if (hold != null || removed) {
+        log(Journal.EXPIRE_HOLD, bookId, memberId, Long.toString(expiry));
+      }
+    } finally {
+      memberLock.unlock();
+      bookLock.unlock();
+    }
+  }
+
+  /*
+   * Starts the thread that expires holds every minute
+   */
+  private static synchronized void startExpirer() {
+    if (expirer != null) {
+      return;
+    }
+    expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Library hold expirer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    expirer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          library.expireHolds();
+        } catch (RuntimeException re) {
+          re.printStackTrace();
         }
       }
+    }, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /*
+   * Records the holds of a library read from a serialized file
+   */
+  private void scheduleHolds() {
+    for (Iterator<?> books = catalog.getBooks(); books.hasNext(); ) {
+      for (Iterator<?> holds = ((Book) books.next()).getHolds(); holds.hasNext(); ) {
+        Hold hold = (Hold) holds.next();
+        holdExpiry.add(hold.getBook().getId(), hold.getMember().getId(), hold.getDate().getTimeInMillis());
+      }
+    }
+  }
+
+  /*
+   * Records the loans of a library read from a serialized file in the
+   * due date index
+   */
+  private void indexLoans() {
+    for (Iterator<?> books = catalog.getBooks(); books.hasNext(); ) {
+      Book book = (Book) books.next();
+      if (book.getBorrower() != null) {
+        dueIndex.add(book.getId(), book.getDueTime());
+      }
+    }
+  }
+
+  /*
+   * Records the transactions of a library read from a serialized file
+   * in the ledger
+   */
+  private void fillLedger() {
+    for (Iterator<?> members = memberList.getMembers(); members.hasNext(); ) {
+      Member member = (Member) members.next();
+      for (Iterator<?> transactions = member.getAllTransactions(); transactions.hasNext(); ) {
+        Transaction transaction = (Transaction) transactions.next();
+        Ledger.instance().restore(member.getId(), transaction.getType(), transaction.getTitle(),
+            transaction.getTime());
+      }
     }
   }
 
+  /*
+   * Stops all circulation: acquires every book lock, then every member lock
+   */
+  private static void lockAll() {
+    bookLocks.lockAll();
+    memberLocks.lockAll();
+  }
+
+  /*
+   * Resumes circulation
+   */
+  private static void unlockAll() {
+    memberLocks.unlockAll();
+    bookLocks.unlockAll();
+  }
+
+  /**
+   * Returns the lock guarding a book, for readers that go through the
+   * catalog without the Library's operations, e.g. exports
+   * @param bookId id of the book
+   * @return the lock of the book's stripe
+   */
+  static Lock bookLock(String bookId) {
+    return bookLocks.get(bookId);
+  }
+
+  /**
+   * Returns the lock guarding a member, for readers that go through the
+   * members without the Library's operations, e.g. exports
+   * @param memberId id of the member
+   * @return the lock of the member's stripe
+   */
+  static Lock memberLock(String memberId) {
+    return memberLocks.get(memberId);
+  }
+
+  /**
+   * Returns the books in catalog order without copying the catalog or
+   * loading a mapped snapshot; see Catalog.stream(). The books are not
+   * locked: read them with bookLock() held.
+   * @return iterator to the books
+   */
+  Iterator<Book> streamBooks() {
+    return catalog.stream();
+  }
+
+  /**
+   * Returns the members in registration order without copying them or
+   * loading a mapped snapshot; see MemberList.stream(). The members are
+   * not locked: read them with memberLock() held.
+   * @return iterator to the members
+   */
+  Iterator<Member> streamMembers() {
+    return memberList.stream();
+  }
+
   /**
    * Organizes the issuing of a book
    * @param memberId member id
@@ -189,21 +515,73 @@ public class Library implements Serializable {
    * @return the book issued
    */
   public Book issueBook(String memberId, String bookId) {
-    Book book = catalog.search(bookId);
-    if (book == null) {
-      return (null);
-    }
-    if (book.getBorrower() != null) {
+    if (issue(memberId, null, 0, bookId) != OPERATION_COMPLETED) {
       return (null);
     }
-    Member member = memberList.search(memberId);
+    return (catalog.search(bookId));
+  }
+
+  /**
+   * Issues several books to a member, e.g. a stack brought to the desk.
+   * The member is looked up once, and the journal is forced to disk once
+   * for all the books.
+   * @param memberId member id
+   * @param bookIds ids of the books
+   * @return a code for each book: OPERATION_COMPLETED, BOOK_NOT_FOUND,
+   * BOOK_ISSUED, NO_SUCH_MEMBER or OPERATION_FAILED
+   */
+  public int[] issueBooks(String memberId, List<String> bookIds) {
+    int[] results = new int[bookIds.size()];
+    int retrieved = retrievals;
+    Member member = findMember(memberId);
     if (member == null) {
-      return (null);
+      Arrays.fill(results, NO_SUCH_MEMBER);
+      return (results);
     }
-    if (!(book.issue(member) && member.issue(book))) {
-      return null;
+    beginBatch();
+    try {
+      for (int index = 0; index < results.length; index++) {
+        results[index] = issue(memberId, member, retrieved, bookIds.get(index));
+      }
+    } finally {
+      endBatch();
+    }
+    return (results);
+  }
+
+  /*
+   * Issues a book. The member may have been looked up already; it is
+   * looked up again if the library was retrieved since.
+   */
+  private int issue(String memberId, Member member, int retrieved, String bookId) {
+    Lock bookLock = bookLocks.get(bookId);
+    Lock memberLock = memberLocks.get(memberId);
+    bookLock.lock();
+    memberLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      if (book.getBorrower() != null) {
+        return (BOOK_ISSUED);
+      }
+      if (member == null || retrieved != retrievals) {
+        member = memberList.search(memberId);
+      }
+      if (member == null) {
+        return (NO_SUCH_MEMBER);
+      }
+      if (!(book.issue(member) && member.issue(book))) {
+        return (OPERATION_FAILED);
+      }
+      dueIndex.add(bookId, book.getDueTime());
+      log(Journal.ISSUE_BOOK, memberId, bookId);
+      return (OPERATION_COMPLETED);
+    } finally {
+      memberLock.unlock();
+      bookLock.unlock();
     }
-    return (book);
   }
 
   /**
@@ -213,18 +591,87 @@ public class Library implements Serializable {
    * @return the book renewed
    */
   public Book renewBook(String bookId, String memberId) {
-    Book book = catalog.search(bookId);
-    if (book == null) {
+    if (renew(bookId, memberId, null, 0) != OPERATION_COMPLETED) {
       return (null);
     }
-    Member member = memberList.search(memberId);
+    return (catalog.search(bookId));
+  }
+
+  /**
+   * Renews several books of a member, looking the member up once and
+   * forcing the journal to disk once for all the books
+   * @param memberId member id
+   * @param bookIds ids of the books
+   * @return a code for each book: OPERATION_COMPLETED, BOOK_NOT_FOUND,
+   * BOOK_NOT_ISSUED, BOOK_HAS_HOLD, NO_SUCH_MEMBER or OPERATION_FAILED if
+   * the book is issued to someone else
+   */
+  public int[] renewBooks(String memberId, List<String> bookIds) {
+    int[] results = new int[bookIds.size()];
+    int retrieved = retrievals;
+    Member member = findMember(memberId);
     if (member == null) {
-      return (null);
+      Arrays.fill(results, NO_SUCH_MEMBER);
+      return (results);
     }
-    if ((book.renew(member) && member.renew(book))) {
-      return (book);
+    beginBatch();
+    try {
+      for (int index = 0; index < results.length; index++) {
+        results[index] = renew(bookIds.get(index), memberId, member, retrieved);
+      }
+    } finally {
+      endBatch();
+    }
+    return (results);
+  }
+
+  /*
+   * Renews a book. The member may have been looked up already; it is
+   * looked up again if the library was retrieved since.
+   */
+  private int renew(String bookId, String memberId, Member member, int retrieved) {
+    Lock bookLock = bookLocks.get(bookId);
+    Lock memberLock = memberLocks.get(memberId);
+    bookLock.lock();
+    memberLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      if (member == null || retrieved != retrievals) {
+        member = memberList.search(memberId);
+      }
+      if (member == null) {
+        return (NO_SUCH_MEMBER);
+      }
+      if (book.getBorrower() == null) {
+        return (BOOK_NOT_ISSUED);
+      }
+      log(Journal.RENEW_BOOK, bookId, memberId);
+      boolean renewed = book.renew(member) && member.renew(book);
+      dueIndex.add(bookId, book.getDueTime());
+      if (renewed) {
+        return (OPERATION_COMPLETED);
+      }
+      return (book.hasHold() ? BOOK_HAS_HOLD : OPERATION_FAILED);
+    } finally {
+      memberLock.unlock();
+      bookLock.unlock();
+    }
+  }
+
+  /*
+   * Looks a member up under its lock
+   */
+  private Member findMember(String memberId) {
+    Lock memberLock = memberLocks.get(memberId);
+    memberLock.lock();
+    try {
+      return (memberList.search(memberId));
+    } finally {
+      memberLock.unlock();
     }
-    return (null);
   }
 
   /**
@@ -233,11 +680,20 @@ public class Library implements Serializable {
    * @return iterator to the collection
    */
   public Iterator getBooks(String memberId) {
-    Member member = memberList.search(memberId);
-    if (member == null) {
-      return (null);
-    } else {
-      return (member.getBooksIssued());
+    Lock memberLock = memberLocks.get(memberId);
+    memberLock.lock();
+    try {
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (null);
+      }
+      List<Book> books = new ArrayList<Book>();
+      for (Iterator<?> iterator = member.getBooksIssued(); iterator.hasNext(); ) {
+        books.add((Book) iterator.next());
+      }
+      return (books.iterator());
+    } finally {
+      memberLock.unlock();
     }
   }
 
@@ -247,21 +703,28 @@ public class Library implements Serializable {
    * @return a code representing the outcome
    */
   public int removeBook(String bookId) {
-    Book book = catalog.search(bookId);
+    Lock bookLock = bookLocks.get(bookId);
+    bookLock.lock();
+    try {
+      Book book = catalog.search(bookId);
 
-    if (book == null) {
-      return (BOOK_NOT_FOUND);
-    }
-    if (book.hasHold()) {
-      return (BOOK_HAS_HOLD);
-    }
-    if (book.getBorrower() != null) {
-      return (BOOK_ISSUED);
-    }
-    if (catalog.removeBook(bookId)) {
-      return (OPERATION_COMPLETED);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      if (book.hasHold()) {
+        return (BOOK_HAS_HOLD);
+      }
+      if (book.getBorrower() != null) {
+        return (BOOK_ISSUED);
+      }
+      if (catalog.removeBook(bookId)) {
+        log(Journal.REMOVE_BOOK, bookId);
+        return (OPERATION_COMPLETED);
+      }
+      return (OPERATION_FAILED);
+    } finally {
+      bookLock.unlock();
     }
-    return (OPERATION_FAILED);
   }
 
   /**
@@ -270,21 +733,54 @@ public class Library implements Serializable {
    * @return a code representing the outcome
    */
   public int returnBook(String bookId) {
-    Book book = catalog.search(bookId);
-    if (book == null) {
-      return (BOOK_NOT_FOUND);
-    }
-    Member member = book.returnBook();
-    if (member == null) {
-      return (BOOK_NOT_ISSUED);
-    }
-    if (!(member.returnBook(book))) {
-      return (OPERATION_FAILED);
+    Lock bookLock = bookLocks.get(bookId);
+    bookLock.lock();
+    try {
+      Book book = catalog.search(bookId);
+      if (book == null) {
+        return (BOOK_NOT_FOUND);
+      }
+      if (book.getBorrower() == null) {
+        return (BOOK_NOT_ISSUED);
+      }
+      Lock memberLock = memberLocks.get(book.getBorrower().getId());
+      memberLock.lock();
+      try {
+        Member member = book.returnBook();
+        dueIndex.remove(bookId);
+        log(Journal.RETURN_BOOK, bookId);
+        if (!(member.returnBook(book))) {
+          return (OPERATION_FAILED);
+        }
+        if (book.hasHold()) {
+          return (BOOK_HAS_HOLD);
+        }
+        return (OPERATION_COMPLETED);
+      } finally {
+        memberLock.unlock();
+      }
+    } finally {
+      bookLock.unlock();
     }
-    if (book.hasHold()) {
-      return (BOOK_HAS_HOLD);
+  }
+
+  /**
+   * Returns several books, forcing the journal to disk once for all of
+   * them, e.g. when a patron drops a pile at a kiosk
+   * @param bookIds ids of the books
+   * @return a code for each book, as returned by returnBook
+   */
+  public int[] returnBooks(List<String> bookIds) {
+    int[] results = new int[bookIds.size()];
+    beginBatch();
+    try {
+      for (int index = 0; index < results.length; index++) {
+        results[index] = returnBook(bookIds.get(index));
+      }
+    } finally {
+      endBatch();
     }
-    return (OPERATION_COMPLETED);
+    return (results);
   }
 
   /**
@@ -294,23 +790,152 @@ public class Library implements Serializable {
    * @return iterator to the collection
    */
   public Iterator getTransactions(String memberId, Calendar date) {
-    Member member = memberList.search(memberId);
-    if (member == null) {
-      return (null);
+    Lock memberLock = memberLocks.get(memberId);
+    memberLock.lock();
+    try {
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (null);
+      }
+      return member.getTransactions(date);
+    } finally {
+      memberLock.unlock();
     }
-    return member.getTransactions(date);
   }
 
   /**
-   * Retrieves a deserialized version of the library from disk
+   * Returns an iterator to all the transactions of a member
+   * @param memberId member id
+   * @return iterator to a copy of the transactions, oldest first; null if there is no such member
+   */
+  public Iterator<Transaction> getAllTransactions(String memberId) {
+    Lock memberLock = memberLocks.get(memberId);
+    memberLock.lock();
+    try {
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (null);
+      }
+      List<Transaction> transactions = new ArrayList<Transaction>();
+      for (Iterator<?> iterator = member.getAllTransactions(); iterator.hasNext(); ) {
+        transactions.add((Transaction) iterator.next());
+      }
+      return (transactions.iterator());
+    } finally {
+      memberLock.unlock();
+    }
+  }
+
+  /**
+   * Returns an iterator to the transactions of a member over a range of days
+   * @param memberId member id
+   * @param from the first day of the range
+   * @param to the last day of the range, included
+   * @return iterator to the transactions, oldest first; null if there is no such member
+   */
+  public Iterator<Transaction> getTransactions(String memberId, Calendar from, Calendar to) {
+    Lock memberLock = memberLocks.get(memberId);
+    memberLock.lock();
+    try {
+      Member member = memberList.search(memberId);
+      if (member == null) {
+        return (null);
+      }
+      return member.getTransactions(from, to);
+    } finally {
+      memberLock.unlock();
+    }
+  }
+
+  /**
+   * Returns the transactions of every member over a period, for reports
+   * @param from start of the period
+   * @param to end of the period, excluded
+   * @param type the type of transaction wanted, e.g. "Book issued ", or null for every type
+   * @return iterator to the ledger entries, oldest first
+   */
+  public Iterator<Ledger.Entry> scanTransactions(Calendar from, Calendar to, String type) {
+    return Ledger.instance().scan(from.getTimeInMillis(), to.getTimeInMillis(), type);
+  }
+
+  /**
+   * Lists the books that should have been returned by now, the earliest
+   * due first. Only the overdue loans are looked at.
+   * @return iterator to the Overdue lines
+   */
+  public Iterator<Overdue> getOverdueBooks() {
+    long now = LibraryClock.now();
+    List<Overdue> report = new ArrayList<Overdue>();
+    for (DueIndex.Entry entry : dueIndex.dueBefore(now)) {
+      Lock bookLock = bookLocks.get(entry.getBookId());
+      bookLock.lock();
+      try {
+        Book book = catalog.search(entry.getBookId());
+        if (book != null && book.getBorrower() != null && book.getDueTime() == entry.getDueTime()) {
+          report.add(new Overdue(book, book.getBorrower(), entry.getDueTime(), now));
+        }
+      } finally {
+        bookLock.unlock();
+      }
+    }
+    return report.iterator();
+  }
+
+  /**
+   * Retrieves the library from disk. Files written by earlier versions,
+   * which serialized the whole object graph, are still read; the next
+   * save converts them to the binary snapshot format. If the library was
+   * never saved, it is rebuilt from the journals of the last library
+   * started from scratch, so a crash before the first save loses nothing.
    * @return a Library object
    */
   public static Library retrieve() {
+    lockAll();
     try {
-      FileInputStream file = new FileInputStream("LibraryData");
-      ObjectInputStream input = new ObjectInputStream(file);
-      input.readObject();
-      MemberIdServer.retrieve(input);
+      File file = new File(DATA_FILE);
+      MappedSnapshot snapshot = null;
+      ObjectInputStream input = null;
+      long firstJournal = file.exists() ? -1 : firstJournalOfLastChain();
+      if (firstJournal < 0) {
+        if (Snapshot.isSnapshot(file)) {
+          snapshot = MappedSnapshot.open(file);
+        } else {
+          input = new ObjectInputStream(new FileInputStream(file));
+        }
+      }
+      retrievals++;
+      holdExpiry.clear();
+      dueIndex.clear();
+      Ledger.instance().clear();
+      if (snapshot != null) {
+        instance();
+        library.catalog.clear();
+        library.catalog.attach(snapshot);
+        library.memberList.clear();
+        library.memberList.attach(snapshot);
+        MemberIdServer.instance().restore(snapshot.getNextMemberId());
+        library.generation = snapshot.getGeneration();
+        snapshot.scheduleHolds(holdExpiry);
+        snapshot.indexLoans(dueIndex);
+        Ledger.instance().attach(snapshot);
+      } else if (firstJournal >= 0) {
+        instance();
+        library.catalog.clear();
+        library.memberList.clear();
+        library.generation = firstJournal;
+      } else {
+        try {
+          input.readObject();
+          MemberIdServer.retrieve(input);
+        } finally {
+          input.close();
+        }
+        library.scheduleHolds();
+        library.indexLoans();
+        library.fillLedger();
+      }
+      library.replayJournal(firstJournal >= 0 ? -1 : library.generation - 1);
+      startExpirer();
       return library;
     } catch (IOException ioe) {
       ioe.printStackTrace();
@@ -318,23 +943,307 @@ public class Library implements Serializable {
     } catch (ClassNotFoundException cnfe) {
       cnfe.printStackTrace();
       return null;
+    } finally {
+      unlockAll();
     }
   }
 
   /**
-   * Serializes the Library object
+   * Writes a binary snapshot of the library and waits until it is on disk
    * @return true iff the data could be saved
    */
   public static boolean save() {
     try {
-      FileOutputStream file = new FileOutputStream("LibraryData");
-      ObjectOutputStream output = new ObjectOutputStream(file);
-      output.writeObject(library);
-      output.writeObject(MemberIdServer.instance());
-      return true;
+      return saveInBackground().get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException ee) {
+      ee.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Captures the state of the library and writes it to disk on a
+   * background thread, so circulation can go on meanwhile. Operations
+   * performed after the capture go to a new journal; the journals covered
+   * by the snapshot are deleted once it has replaced the previous one.
+   * @return the outcome of the save: true iff the data could be saved
+   */
+  public static Future<Boolean> saveInBackground() {
+    final long snapshotGeneration;
+    final Snapshot snapshot;
+    lockAll();
+    try {
+      snapshotGeneration = library.generation + 1;
+      snapshot = Snapshot.capture(library.catalog, library.memberList, snapshotGeneration,
+          MemberIdServer.instance().peekId());
+      library.startJournal(snapshotGeneration);
+    } finally {
+      unlockAll();
+    }
+    return saver().submit(new Callable<Boolean>() {
+      public Boolean call() {
+        try {
+          snapshot.write(new File(DATA_FILE));
+        } catch (IOException ioe) {
+          ioe.printStackTrace();
+          return false;
+        }
+        deleteJournalsBefore(snapshotGeneration);
+        return true;
+      }
+    });
+  }
+
+  /*
+   * Returns the thread on which snapshots are written
+   */
+  private static synchronized ExecutorService saver() {
+    if (saver == null) {
+      saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Library snapshot writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return saver;
+  }
+
+  /*
+   * Closes the current journal and starts the one for the given generation
+   */
+  private synchronized void startJournal(long newGeneration) {
+    try {
+      if (journal != null) {
+        journal.close();
+      }
     } catch (IOException ioe) {
       ioe.printStackTrace();
-      return false;
+    }
+    journal = null;
+    parent = generation;
+    generation = newGeneration;
+    try {
+      journal = Journal.create(journalFile(generation), generation, parent);
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+  }
+
+  /*
+   * Returns the journal file of a generation
+   */
+  private static File journalFile(long generation) {
+    return new File(JOURNAL_FILE + "." + generation);
+  }
+
+  /*
+   * Deletes the journals older than the given generation, which are
+   * covered by the snapshot of that generation
+   */
+  private static void deleteJournalsBefore(long generation) {
+    for (long older = generation - 1; older >= 0 && journalFile(older).delete(); older--) {
+    }
+  }
+
+  /*
+   * Returns the highest generation of the journal files on disk, or 0
+   * if there are none. A new library starts above it so that journals
+   * left over from an earlier library are never replayed into its
+   * snapshots.
+   */
+  private static long lastJournalGeneration() {
+    long last = 0;
+    for (long generation : journalGenerations()) {
+      last = Math.max(last, generation);
+    }
+    return last;
+  }
+
+  /*
+   * Returns the generation of the first journal of the last library
+   * started from scratch, i.e. the newest journal that continues no other
+   * one, or -1 if there is none. Retrieving replays its chain when no
+   * snapshot was ever saved.
+   */
+  private static long firstJournalOfLastChain() {
+    long first = -1;
+    for (long generation : journalGenerations()) {
+      if (generation > first && Journal.continues(journalFile(generation), generation, -1)) {
+        first = generation;
+      }
+    }
+    return first;
+  }
+
+  /*
+   * Returns the generations of the journal files on disk
+   */
+  private static List<Long> journalGenerations() {
+    List<Long> generations = new ArrayList<Long>();
+    String[] names = new File(".").list();
+    if (names == null) {
+      return generations;
+    }
+    for (String name : names) {
+      if (name.startsWith(JOURNAL_FILE + ".")) {
+        try {
+          generations.add(Long.parseLong(name.substring(JOURNAL_FILE.length() + 1)));
+        } catch (NumberFormatException nfe) {
+          // not a journal
+        }
+      }
+    }
+    return generations;
+  }
+
+  /*
+   * Records an operation in the journal, unless the journal itself is
+   * being replayed
+   */
+  private void log(byte operation, String... arguments) {
+    if (replaying) {
+      return;
+    }
+    try {
+      Journal current;
+      synchronized (this) {
+        if (journal == null) {
+          journal = Journal.create(journalFile(generation), generation, parent);
+        }
+        current = journal;
+      }
+      Batch batch = batches.get();
+      if (batch == null) {
+        current.append(operation, LibraryClock.now(), arguments);
+      } else {
+        batch.sequence = current.write(operation, LibraryClock.now(), arguments);
+        batch.journal = current;
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+  }
+
+  /**
+   * Starts a batch on this thread: the operations it journals until the
+   * matching endBatch() are forced to disk together. Batches may nest.
+   */
+  static void beginBatch() {
+    Batch batch = batches.get();
+    if (batch == null) {
+      batch = new Batch();
+      batches.set(batch);
+    }
+    batch.depth++;
+  }
+
+  /**
+   * Ends a batch, waiting for its records to be on disk if it is the
+   * outermost one. Records in a journal closed meanwhile by a save were
+   * forced when it was closed.
+   */
+  static void endBatch() {
+    Batch batch = batches.get();
+    if (--batch.depth > 0) {
+      return;
+    }
+    batches.remove();
+    if (batch.journal != null) {
+      try {
+        batch.journal.sync(batch.sequence);
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+    }
+  }
+
+  /*
+   * Re-applies the operations journaled since the snapshot was taken:
+   * the journal of the snapshot's generation and any later ones, which
+   * exist if a background save did not complete. Each must continue the
+   * one before it; a journal started by another library, e.g. a new one
+   * that was never saved, ends the replay. The clock is pinned to the
+   * time of each operation while it is applied.
+   * @param firstParent the generation the first journal must continue;
+   * -1 for the first journal of a library that was never saved
+   */
+  private void replayJournal(long firstParent) {
+    try {
+      if (journal != null) {
+        journal.close();
+        journal = null;
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+    parent = firstParent;
+    replaying = true;
+    try {
+      long previous = firstParent;
+      for (long next = generation; Journal.continues(journalFile(next), next, previous); previous = next++) {
+        List<Journal.Record> records = new ArrayList<Journal.Record>();
+        Journal opened = Journal.open(journalFile(next), next, previous, records);
+        if (journal != null) {
+          journal.close();
+        }
+        journal = opened;
+        generation = next;
+        parent = previous;
+        for (Journal.Record record : records) {
+          LibraryClock.pin(record.getTime());
+          apply(record);
+        }
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    } finally {
+      LibraryClock.release();
+      replaying = false;
+    }
+  }
+
+  /*
+   * Applies a single journal record
+   */
+  private void apply(Journal.Record record) {
+    switch (record.getOperation()) {
+      case Journal.ADD_BOOK:
+        addBook(record.getArgument(0), record.getArgument(1), record.getArgument(2));
+        break;
+      case Journal.ADD_MEMBER:
+        insertMember(new Member(record.getArgument(0), record.getArgument(1), record.getArgument(2),
+            record.getArgument(3)));
+        MemberIdServer.instance().reserve(record.getArgument(3));
+        break;
+      case Journal.ISSUE_BOOK:
+        issueBook(record.getArgument(0), record.getArgument(1));
+        break;
+      case Journal.RETURN_BOOK:
+        returnBook(record.getArgument(0));
+        break;
+      case Journal.RENEW_BOOK:
+        renewBook(record.getArgument(0), record.getArgument(1));
+        break;
+      case Journal.PLACE_HOLD:
+        placeHold(record.getArgument(0), record.getArgument(1), Integer.parseInt(record.getArgument(2)));
+        break;
+      case Journal.REMOVE_HOLD:
+        removeHold(record.getArgument(0), record.getArgument(1));
+        break;
+      case Journal.PROCESS_HOLD:
+        processHold(record.getArgument(0));
+        break;
+      case Journal.REMOVE_BOOK:
+        removeBook(record.getArgument(0));
+        break;
+      case Journal.EXPIRE_HOLD:
+        expireHold(record.getArgument(0), record.getArgument(1), Long.parseLong(record.getArgument(2)));
+        break;
     }
   }
 
@@ -0,0 +1,43 @@
+/**
+ * Source of the current time for books, holds and transactions.
+ * While the journal is replayed the clock is pinned to the time at which
+ * each operation originally happened, so due dates, hold expiry dates and
+ * transaction dates come out the same as before the restart.
+ *
+ */
+public class LibraryClock {
+  private static final ThreadLocal<Long> pinned = new ThreadLocal<Long>();
+
+  /*
+   * Not instantiable
+   */
+  private LibraryClock() {
+  }
+
+  /**
+   * Returns the current time
+   * @return milliseconds since the epoch
+   */
+  public static long now() {
+    Long time = pinned.get();
+    if (time != null) {
+      return time;
+    }
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Pins the clock of the calling thread to the given time
+   * @param time milliseconds since the epoch
+   */
+  public static void pin(long time) {
+    pinned.set(time);
+  }
+
+  /**
+   * Releases the clock of the calling thread
+   */
+  public static void release() {
+    pinned.remove();
+  }
+}
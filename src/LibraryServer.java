@@ -0,0 +1,179 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.net.*;
+import java.io.*;
+
+/**
+ * Serves the library to desk terminals and self-checkout kiosks over TCP
+ * on the local machine, so that many of them drive one library at the same
+ * time. A client sends the circulation, transaction and search commands of
+ * BatchProcessor, one per line; each line is answered with a line starting
+ * with OK or FAILED. Commands that read or write files, or save or
+ * retrieve the library, are refused. Every
+ * connection is served by its own thread, so a slow client holds up no one
+ * else; the library's own locks keep concurrent operations apart.
+ * Clients may send commands without waiting for the answers. The commands
+ * already received are run as one batch, whose journal records are forced
+ * to disk once, and their answers are sent together, in order. A client
+ * may also send a line "batch", a tab and a count, followed by that many
+ * commands, which are then run as one batch whatever the network does,
+ * e.g. the fifteen returns of a patron at a kiosk.
+ *
+ */
+public class LibraryServer {
+  private static final int MAX_BATCH = 1000;
+  private static final Set<String> COMMANDS = new HashSet<String>(Arrays.asList("issue", "return", "renew",
+      "issuebooks", "returnbooks", "renewbooks", "placehold", "removehold", "processhold", "transactions", "search",
+      "member"));
+  private Library library;
+  private ServerSocket serverSocket;
+  private ExecutorService connections;
+  private Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+  /**
+   * Creates a server for a library
+   * @param library the library served
+   */
+  public LibraryServer(Library library) {
+    this.library = library;
+  }
+
+  /**
+   * Starts listening on the loopback interface
+   * @param port the port to listen on; 0 for any free port
+   * @return the port listened on
+   * @throws IOException if the port cannot be opened
+   */
+  public synchronized int start(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    connections = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Library connection");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final ServerSocket listening = serverSocket;
+    connections.execute(new Runnable() {
+      public void run() {
+        accept(listening);
+      }
+    });
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Stops accepting connections and closes the open ones
+   */
+  public synchronized void stop() {
+    if (serverSocket == null) {
+      return;
+    }
+    try {
+      serverSocket.close();
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+    for (Socket socket : clients) {
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+    }
+    connections.shutdownNow();
+    serverSocket = null;
+  }
+
+  /*
+   * Hands every new connection to a thread of its own. A connection
+   * accepted while the server stops is closed here, as stop() may already
+   * have closed the others.
+   */
+  private void accept(ServerSocket listening) {
+    while (!listening.isClosed()) {
+      try {
+        final Socket socket = listening.accept();
+        clients.add(socket);
+        if (listening.isClosed()) {
+          clients.remove(socket);
+          socket.close();
+          return;
+        }
+        connections.execute(new Runnable() {
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        return;
+      } catch (IOException ioe) {
+        if (!listening.isClosed()) {
+          ioe.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /*
+   * Reads the commands announced by a batch line. A count that is not a
+   * number, or is above MAX_BATCH, is passed on as a command, to be
+   * answered as a failure; the lines after it are then read as commands
+   * of their own.
+   */
+  private static void readBatch(String header, BufferedReader input, List<String> lines) throws IOException {
+    int count;
+    try {
+      count = Integer.parseInt(header.substring(header.indexOf('\t') + 1).trim());
+    } catch (NumberFormatException nfe) {
+      count = -1;
+    }
+    if (count < 0 || count > MAX_BATCH) {
+      lines.add(header);
+      return;
+    }
+    String line;
+    for (int index = 0; index < count && (line = input.readLine()) != null; index++) {
+      lines.add(line);
+    }
+  }
+
+  /*
+   * Answers the commands of one client until it disconnects
+   */
+  private void serve(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      PrintWriter output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+          "UTF-8")));
+      BatchProcessor processor = new BatchProcessor(library, output, COMMANDS);
+      List<String> lines = new ArrayList<String>();
+      String line;
+      while ((line = input.readLine()) != null) {
+        lines.clear();
+        do {
+          if (line.startsWith("batch\t")) {
+            readBatch(line, input, lines);
+          } else if (!line.trim().isEmpty()) {
+            lines.add(line);
+          }
+        } while (lines.size() < MAX_BATCH && input.ready() && (line = input.readLine()) != null);
+        for (String result : processor.execute(lines)) {
+          output.print(result);
+          output.print('\n');
+        }
+        output.flush();
+      }
+    } catch (IOException ioe) {
+      // the client went away
+    } finally {
+      clients.remove(socket);
+      try {
+        socket.close();
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+    }
+  }
+}
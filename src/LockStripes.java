@@ -0,0 +1,57 @@
+import java.util.concurrent.locks.*;
+
+/**
+ * A fixed set of locks shared by hashing keys onto them. Operations on
+ * different keys usually get different locks and can proceed in parallel,
+ * without keeping one lock per book or member.
+ *
+ */
+public class LockStripes {
+  private ReentrantLock[] locks;
+
+  /**
+   * Creates the stripes
+   * @param count number of locks; rounded up to a power of two
+   */
+  public LockStripes(int count) {
+    int size = 1;
+    while (size < count) {
+      size <<= 1;
+    }
+    locks = new ReentrantLock[size];
+    for (int index = 0; index < size; index++) {
+      locks[index] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Returns the lock guarding a key
+   * @param key the key; null is allowed
+   * @return the lock for the key
+   */
+  public Lock get(String key) {
+    if (key == null) {
+      return locks[0];
+    }
+    int hash = key.hashCode() * 0x9E3779B9;
+    return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+  }
+
+  /**
+   * Acquires every lock, in a fixed order
+   */
+  public void lockAll() {
+    for (ReentrantLock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  /**
+   * Releases every lock
+   */
+  public void unlockAll() {
+    for (int index = locks.length - 1; index >= 0; index--) {
+      locks[index].unlock();
+    }
+  }
+}
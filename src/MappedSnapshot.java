@@ -0,0 +1,560 @@
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+
+/**
+ * Read-only view of a snapshot file mapped into memory. Books and members
+ * are looked up through the hash tables stored in the file and are only
+ * turned into objects when first asked for. Materializing a book or member
+ * also materializes the members and books it is linked to through loans
+ * and holds, so that every object handed out has its complete state.
+ * See Snapshot for the layout of the file.
+ *
+ */
+public class MappedSnapshot {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private ByteBuffer buffer;
+  private long generation;
+  private int nextMemberId;
+  private int stringOffsets;
+  private int bookTable;
+  private int memberTable;
+  private int bookHash;
+  private int bookHashCapacity;
+  private int memberHash;
+  private int memberHashCapacity;
+  private String[] strings;
+  private Book[] books;
+  private Member[] members;
+  private Map<Long, ArrayList<Hold>> holds = new HashMap<Long, ArrayList<Hold>>();
+  private ArrayDeque<Integer> pendingBooks = new ArrayDeque<Integer>();
+  private ArrayDeque<Integer> pendingMembers = new ArrayDeque<Integer>();
+
+  /*
+   * Reads the header of the mapped file
+   */
+  private MappedSnapshot(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != Snapshot.MAGIC) {
+      throw new IOException("not a library snapshot");
+    }
+    short version = buffer.getShort(4);
+    if (version != Snapshot.VERSION) {
+      throw new IOException("unsupported snapshot version " + version);
+    }
+    generation = buffer.getLong(8);
+    nextMemberId = buffer.getInt(16);
+    strings = new String[buffer.getInt(20)];
+    books = new Book[buffer.getInt(24)];
+    members = new Member[buffer.getInt(28)];
+    bookHashCapacity = buffer.getInt(32);
+    memberHashCapacity = buffer.getInt(36);
+    stringOffsets = buffer.getInt(40);
+    bookTable = buffer.getInt(44);
+    memberTable = buffer.getInt(48);
+    bookHash = buffer.getInt(52);
+    memberHash = buffer.getInt(56);
+  }
+
+  /**
+   * Maps a snapshot file into memory. Only the header is read.
+   * @param file the snapshot file
+   * @return the mapped snapshot
+   * @throws IOException if the file cannot be mapped or is not a snapshot
+   */
+  public static MappedSnapshot open(File file) throws IOException {
+    FileChannel channel = new FileInputStream(file).getChannel();
+    try {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to be mapped");
+      }
+      return new MappedSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Getter for the generation
+   * @return generation of the snapshot
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Getter for the next member id
+   * @return the id the next member gets
+   */
+  public int getNextMemberId() {
+    return nextMemberId;
+  }
+
+  /**
+   * Returns the number of books in the snapshot
+   * @return number of books
+   */
+  public int bookCount() {
+    return books.length;
+  }
+
+  /**
+   * Returns the number of members in the snapshot
+   * @return number of members
+   */
+  public int memberCount() {
+    return members.length;
+  }
+
+  /**
+   * Finds a book by id
+   * @param bookId id of the book
+   * @return the book, or null if the snapshot does not contain it
+   */
+  public synchronized Book findBook(String bookId) {
+    int index = find(bookHash, bookHashCapacity, bookTable, Snapshot.BOOK_RECORD, bookId);
+    return index < 0 ? null : getBook(index);
+  }
+
+  /**
+   * Finds a member by id
+   * @param memberId id of the member
+   * @return the member, or null if the snapshot does not contain it
+   */
+  public synchronized Member findMember(String memberId) {
+    int index = find(memberHash, memberHashCapacity, memberTable, Snapshot.MEMBER_RECORD, memberId);
+    return index < 0 ? null : getMember(index);
+  }
+
+  /**
+   * Returns a book by its position in the snapshot
+   * @param index position of the book
+   * @return the book
+   */
+  public synchronized Book getBook(int index) {
+    Book book = book(index);
+    drain();
+    return book;
+  }
+
+  /**
+   * Returns a member by its position in the snapshot
+   * @param index position of the member
+   * @return the member
+   */
+  public synchronized Member getMember(int index) {
+    Member member = member(index);
+    drain();
+    return member;
+  }
+
+  /**
+   * Records every hold of the snapshot in an expiry index. Only the ids of
+   * the books and members holding them are decoded; no object is created.
+   * @param expiry the index receiving the holds
+   */
+  public synchronized void scheduleHolds(HoldExpiry expiry) {
+    for (int index = 0; index < books.length; index++) {
+      int record = bookTable + index * Snapshot.BOOK_RECORD;
+      int position = buffer.getInt(record + 12);
+      if (buffer.getInt(position) != Snapshot.NONE) {
+        position += 8;
+      }
+      position += 4;
+      int count = buffer.getInt(position);
+      position += 4;
+      for (; count > 0; count--) {
+        String memberId = string(buffer.getInt(memberTable + buffer.getInt(position) * Snapshot.MEMBER_RECORD));
+        expiry.add(string(buffer.getInt(record)), memberId, buffer.getLong(position + 4));
+        position += 12;
+      }
+    }
+  }
+
+  /**
+   * Records every loan of the snapshot in a due date index. Only the ids
+   * of the books on loan are decoded; no object is created.
+   * @param index the index receiving the loans
+   */
+  public synchronized void indexLoans(DueIndex index) {
+    for (int book = 0; book < books.length; book++) {
+      int record = bookTable + book * Snapshot.BOOK_RECORD;
+      int position = buffer.getInt(record + 12);
+      if (buffer.getInt(position) != Snapshot.NONE) {
+        index.add(string(buffer.getInt(record)), buffer.getLong(position + 4));
+      }
+    }
+  }
+
+  /**
+   * Adds every transaction of the snapshot to a ledger. Only strings are
+   * decoded; no member is created.
+   * @param ledger the ledger receiving the transactions
+   */
+  public synchronized void scanTransactions(Ledger ledger) {
+    for (int index = 0; index < members.length; index++) {
+      int record = memberTable + index * Snapshot.MEMBER_RECORD;
+      String memberId = string(buffer.getInt(record));
+      int position = buffer.getInt(record + 16);
+      int count = buffer.getInt(position);
+      position += 4;
+      for (; count > 0; count--) {
+        ledger.restore(memberId, string(buffer.getInt(position)), string(buffer.getInt(position + 4)),
+            buffer.getLong(position + 8));
+        position += 16;
+      }
+    }
+  }
+
+  /**
+   * Returns the books turned into objects so far
+   * @return a copy of the table of books by position, with null for the
+   * books still only in the file
+   */
+  synchronized Book[] loadedBooks() {
+    return books.clone();
+  }
+
+  /**
+   * Returns the members turned into objects so far
+   * @return a copy of the table of members by position, with null for the
+   * members still only in the file
+   */
+  synchronized Member[] loadedMembers() {
+    return members.clone();
+  }
+
+  /**
+   * Returns a book by its position without loading it: the book itself if
+   * it has been loaded, else a copy read from the file. Such a copy is not
+   * part of the library, nor are its borrower and the members holding it,
+   * which are copies without books, holds or transactions of their own.
+   * Strings are decoded for the copy only, so reading every book this way
+   * does not grow the snapshot.
+   * @param index position of the book
+   * @return the book
+   */
+  synchronized Book peekBook(int index) {
+    if (books[index] != null) {
+      return books[index];
+    }
+    Book book = detachedBook(index);
+    int position = buffer.getInt(bookTable + index * Snapshot.BOOK_RECORD + 12);
+    int borrower = buffer.getInt(position);
+    position += 4;
+    if (borrower != Snapshot.NONE) {
+      book.restoreLoan(detachedMember(borrower), buffer.getLong(position));
+      position += 8;
+    }
+    int count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      book.placeHold(new Hold(detachedMember(buffer.getInt(position)), book, buffer.getLong(position + 4)));
+      position += 12;
+    }
+    return book;
+  }
+
+  /**
+   * Returns a member by its position without loading it: the member itself
+   * if it has been loaded, else a copy read from the file, with its
+   * transactions. Such a copy is not part of the library, nor are the books
+   * it borrowed or holds, which are copies without loans or holds.
+   * @param index position of the member
+   * @return the member
+   */
+  synchronized Member peekMember(int index) {
+    if (members[index] != null) {
+      return members[index];
+    }
+    Member member = detachedMember(index);
+    int position = buffer.getInt(memberTable + index * Snapshot.MEMBER_RECORD + 16);
+    int count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      member.restoreTransaction(text(buffer.getInt(position)), text(buffer.getInt(position + 4)),
+          buffer.getLong(position + 8));
+      position += 16;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      member.restoreIssued(detachedBook(buffer.getInt(position)));
+      position += 4;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      member.restoreHold(new Hold(member, detachedBook(buffer.getInt(position)), buffer.getLong(position + 4)));
+      position += 12;
+    }
+    return member;
+  }
+
+  /**
+   * Reads a book straight from the file into the image of a new snapshot,
+   * without creating it. Its borrower and holders are given by their
+   * position in this snapshot.
+   * @param index position of the book
+   * @param image the image receiving the book
+   */
+  synchronized void describeBook(int index, Snapshot.BookImage image) {
+    int record = bookTable + index * Snapshot.BOOK_RECORD;
+    image.id = string(buffer.getInt(record));
+    image.title = string(buffer.getInt(record + 4));
+    image.author = string(buffer.getInt(record + 8));
+    int position = buffer.getInt(record + 12);
+    image.borrower = buffer.getInt(position);
+    position += 4;
+    if (image.borrower != Snapshot.NONE) {
+      image.dueTime = buffer.getLong(position);
+      position += 8;
+    }
+    int count = buffer.getInt(position);
+    position += 4;
+    image.holders = new int[count];
+    image.holdExpiry = new long[count];
+    for (int hold = 0; hold < count; hold++) {
+      image.holders[hold] = buffer.getInt(position);
+      image.holdExpiry[hold] = buffer.getLong(position + 4);
+      position += 12;
+    }
+  }
+
+  /**
+   * Reads a member straight from the file into the image of a new
+   * snapshot, without creating it. Its books are given by their position
+   * in this snapshot.
+   * @param index position of the member
+   * @param image the image receiving the member
+   */
+  synchronized void describeMember(int index, Snapshot.MemberImage image) {
+    int record = memberTable + index * Snapshot.MEMBER_RECORD;
+    image.id = string(buffer.getInt(record));
+    image.name = string(buffer.getInt(record + 4));
+    image.address = string(buffer.getInt(record + 8));
+    image.phone = string(buffer.getInt(record + 12));
+    int position = buffer.getInt(record + 16);
+    int count = buffer.getInt(position);
+    position += 4;
+    image.transactions = new TransactionHistory();
+    for (; count > 0; count--) {
+      image.transactions.add(string(buffer.getInt(position)), string(buffer.getInt(position + 4)),
+          buffer.getLong(position + 8));
+      position += 16;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    image.borrowed = new int[count];
+    for (int book = 0; book < count; book++) {
+      image.borrowed[book] = buffer.getInt(position);
+      position += 4;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    image.held = new int[count];
+    image.holdExpiry = new long[count];
+    for (int hold = 0; hold < count; hold++) {
+      image.held[hold] = buffer.getInt(position);
+      image.holdExpiry[hold] = buffer.getLong(position + 4);
+      position += 12;
+    }
+  }
+
+  /*
+   * Looks an id up in one of the hash tables
+   */
+  private int find(int hash, int capacity, int table, int recordSize, String id) {
+    if (id == null || capacity == 0) {
+      return -1;
+    }
+    for (int slot = Snapshot.slot(id, capacity); ; slot = (slot + 1) & (capacity - 1)) {
+      int entry = buffer.getInt(hash + slot * 4);
+      if (entry == 0) {
+        return -1;
+      }
+      if (id.equals(string(buffer.getInt(table + (entry - 1) * recordSize)))) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /*
+   * Returns a string of the string table, decoding it on first use
+   */
+  private String string(int index) {
+    if (index == Snapshot.NONE) {
+      return null;
+    }
+    if (strings[index] == null) {
+      int offset = buffer.getInt(stringOffsets + index * 4);
+      byte[] bytes = new byte[buffer.getInt(offset)];
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + 4);
+      view.get(bytes);
+      strings[index] = new String(bytes, UTF_8);
+    }
+    return strings[index];
+  }
+
+  /*
+   * Returns a string of the string table without keeping it
+   */
+  private String text(int index) {
+    if (index == Snapshot.NONE || strings[index] != null) {
+      return string(index);
+    }
+    int offset = buffer.getInt(stringOffsets + index * 4);
+    byte[] bytes = new byte[buffer.getInt(offset)];
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset + 4);
+    view.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /*
+   * Creates a copy of the book at a position with no loan or holds
+   */
+  private Book detachedBook(int index) {
+    int record = bookTable + index * Snapshot.BOOK_RECORD;
+    return new Book(text(buffer.getInt(record + 4)), text(buffer.getInt(record + 8)), text(buffer.getInt(record)));
+  }
+
+  /*
+   * Creates a copy of the member at a position with no books, holds or
+   * transactions
+   */
+  private Member detachedMember(int index) {
+    int record = memberTable + index * Snapshot.MEMBER_RECORD;
+    return new Member(text(buffer.getInt(record + 4)), text(buffer.getInt(record + 8)),
+        text(buffer.getInt(record + 12)), text(buffer.getInt(record)));
+  }
+
+  /*
+   * Returns the book at a position, creating it without its loan and
+   * holds if needed; those are filled in by drain()
+   */
+  private Book book(int index) {
+    if (books[index] == null) {
+      int record = bookTable + index * Snapshot.BOOK_RECORD;
+      books[index] = new Book(string(buffer.getInt(record + 4)), string(buffer.getInt(record + 8)),
+          string(buffer.getInt(record)));
+      pendingBooks.add(index);
+    }
+    return books[index];
+  }
+
+  /*
+   * Returns the member at a position, creating it without its books,
+   * holds and transactions if needed; those are filled in by drain()
+   */
+  private Member member(int index) {
+    if (members[index] == null) {
+      int record = memberTable + index * Snapshot.MEMBER_RECORD;
+      members[index] = new Member(string(buffer.getInt(record + 4)), string(buffer.getInt(record + 8)),
+          string(buffer.getInt(record + 12)), string(buffer.getInt(record)));
+      pendingMembers.add(index);
+    }
+    return members[index];
+  }
+
+  /*
+   * Fills in the objects created but not filled in yet, which may create
+   * further objects
+   */
+  private void drain() {
+    while (!pendingBooks.isEmpty() || !pendingMembers.isEmpty()) {
+      if (!pendingBooks.isEmpty()) {
+        fillBook(pendingBooks.poll());
+      } else {
+        fillMember(pendingMembers.poll());
+      }
+    }
+  }
+
+  /*
+   * Restores the loan and the holds of a book
+   */
+  private void fillBook(int index) {
+    Book book = books[index];
+    int position = buffer.getInt(bookTable + index * Snapshot.BOOK_RECORD + 12);
+    int borrower = buffer.getInt(position);
+    position += 4;
+    if (borrower != Snapshot.NONE) {
+      book.restoreLoan(member(borrower), buffer.getLong(position));
+      position += 8;
+    }
+    int count = buffer.getInt(position);
+    position += 4;
+    Map<Integer, Integer> occurrences = new HashMap<Integer, Integer>();
+    for (; count > 0; count--) {
+      int member = buffer.getInt(position);
+      book.placeHold(hold(index, member, occurrence(occurrences, member), buffer.getLong(position + 4)));
+      position += 12;
+    }
+  }
+
+  /*
+   * Restores the transactions, the borrowed books and the holds of a member
+   */
+  private void fillMember(int index) {
+    Member member = members[index];
+    int position = buffer.getInt(memberTable + index * Snapshot.MEMBER_RECORD + 16);
+    int count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      String type = string(buffer.getInt(position));
+      String title = string(buffer.getInt(position + 4));
+      member.restoreTransaction(type, title, buffer.getLong(position + 8));
+      position += 16;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    for (; count > 0; count--) {
+      member.restoreIssued(book(buffer.getInt(position)));
+      position += 4;
+    }
+    count = buffer.getInt(position);
+    position += 4;
+    Map<Integer, Integer> occurrences = new HashMap<Integer, Integer>();
+    for (; count > 0; count--) {
+      int book = buffer.getInt(position);
+      member.restoreHold(hold(book, index, occurrence(occurrences, book), buffer.getLong(position + 4)));
+      position += 12;
+    }
+  }
+
+  /*
+   * Returns the hold shared by a book and a member, creating it on first
+   * use. A member may hold the same book more than once; the occurrence
+   * tells those holds apart.
+   */
+  private Hold hold(int book, int member, int occurrence, long expiry) {
+    Long key = ((long) book << 32) | (member & 0xFFFFFFFFL);
+    ArrayList<Hold> sameKey = holds.get(key);
+    if (sameKey == null) {
+      sameKey = new ArrayList<Hold>(1);
+      holds.put(key, sameKey);
+    }
+    while (sameKey.size() <= occurrence) {
+      sameKey.add(null);
+    }
+    Hold hold = sameKey.get(occurrence);
+    if (hold == null) {
+      hold = new Hold(member(member), book(book), expiry);
+      sameKey.set(occurrence, hold);
+    }
+    return hold;
+  }
+
+  /*
+   * Counts how many times a key has been seen so far
+   */
+  private static int occurrence(Map<Integer, Integer> occurrences, int key) {
+    Integer seen = occurrences.get(key);
+    occurrences.put(key, seen == null ? 1 : seen + 1);
+    return seen == null ? 0 : seen;
+  }
+}
@@ -19,6 +19,7 @@
  */
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.*;
 public class Member implements Serializable {
   private static final long serialVersionUID = 1L;
   public String name;
@@ -28,7 +29,7 @@ public class Member implements Serializable {
   private static final String MEMBER_STRING = "";
   private List booksBorrowed = new LinkedList();
   private List booksOnHold = new LinkedList();
-  private List transactions = new LinkedList();
+  private TransactionHistory transactions = new TransactionHistory();
   /**
    * Represents a single member
    * @param name name of the member
@@ -41,6 +42,51 @@ public class Member implements Serializable {
     this.phone = phone;
     id = MEMBER_STRING + (MemberIdServer.instance()).getId();
   }
+  /**
+   * Recreates a member with a known id; used when loading a snapshot
+   * @param name name of the member
+   * @param address address of the member
+   * @param phone phone number of the member
+   * @param id id of the member
+   */
+  Member (String name, String address, String phone, String id) {
+    this.name = name;
+    this.address = address;
+    this.phone = phone;
+    this.id = id;
+  }
+  /**
+   * Restores a borrowed book when loading a snapshot
+   * @param book the book borrowed by the member
+   */
+  void restoreIssued(Book book) {
+    booksBorrowed.add(book);
+  }
+  /**
+   * Restores a hold when loading a snapshot
+   * @param hold the hold placed by the member
+   */
+  void restoreHold(Hold hold) {
+    booksOnHold.add(hold);
+  }
+  /**
+   * Restores a transaction when loading a snapshot
+   * @param type the type of transaction
+   * @param title the title of the book
+   * @param time when the transaction happened, in milliseconds
+   */
+  void restoreTransaction(String type, String title, long time) {
+    transactions.add(type, title, time);
+  }
+  /*
+   * Adds a transaction happening now to the member's history and to the
+   * library's ledger
+   */
+  private void record(String type, String title) {
+    Transaction transaction = new Transaction(type, title);
+    transactions.add(transaction);
+    Ledger.instance().add(id, transaction);
+  }
   /**
    * Stores the book as issued to the member
    * @param book the book to be issued
@@ -48,7 +94,7 @@ public class Member implements Serializable {
    */
   public boolean issue(Book book) {
     if (booksBorrowed.add(book)) {
-      transactions.add(new Transaction ("Book issued ", book.getTitle()));
+      record("Book issued ", book.getTitle());
       return true;
     }
     return false;
@@ -60,7 +106,7 @@ public class Member implements Serializable {
    */
   public boolean returnBook(Book book) {
     if ( booksBorrowed.remove(book)){
-      transactions.add(new Transaction ("Book returned ", book.getTitle()));
+      record("Book returned ", book.getTitle());
       return true;
     }
     return false;
@@ -75,7 +121,7 @@ public class Member implements Serializable {
       Book aBook = (Book) iterator.next();
       String id = aBook.getId();
       if (id.equals(book.getId())) {
-        transactions.add(new Transaction ("Book renewed ",  book.getTitle()));
+        record("Book renewed ", book.getTitle());
         return true;
       }
     }
@@ -93,7 +139,7 @@ public class Member implements Serializable {
    * @param hold the book to be placed a hold
    */
   public void placeHold(Hold hold) {
-    transactions.add(new Transaction ("Hold Placed ", hold.getBook().getTitle()));
+    record("Hold Placed ", hold.getBook().getTitle());
     booksOnHold.add(hold);
   }
   /**
@@ -106,27 +152,83 @@ public class Member implements Serializable {
       Hold hold = (Hold) iterator.next();
       String id = hold.getBook().getId();
       if (id.equals(bookId)) {
-        transactions.add(new Transaction ("Hold Removed ", hold.getBook().getTitle()));
+        record("Hold Removed ", hold.getBook().getTitle());
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Removes a given hold, e.g. one that has expired
+   * @param hold the hold to be removed
+   * @return true iff the hold could be removed
+   */
+  public boolean removeHold(Hold hold) {
+    for (ListIterator iterator = booksOnHold.listIterator(); iterator.hasNext(); ) {
+      if (iterator.next() == hold) {
+        record("Hold Removed ", hold.getBook().getTitle());
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Removes the hold on a book that expires at a given time
+   * @param bookId id of the book
+   * @param expiry when the hold expires, in milliseconds
+   * @return true iff the member had such a hold
+   */
+  public boolean removeHold(String bookId, long expiry) {
+    for (ListIterator iterator = booksOnHold.listIterator(); iterator.hasNext(); ) {
+      Hold hold = (Hold) iterator.next();
+      if (hold.getBook().getId().equals(bookId) && hold.getDate().getTimeInMillis() == expiry) {
+        record("Hold Removed ", hold.getBook().getTitle());
         iterator.remove();
         return true;
       }
     }
     return false;
   }
+  /**
+   * Gets an iterator to the holds placed by the member
+   * @return Iterator to the collection of holds
+   */
+  public Iterator getBooksOnHold() {
+    return (booksOnHold.iterator());
+  }
+  /**
+   * Returns the transactions as they are now, for a snapshot; see
+   * TransactionHistory.freeze()
+   * @return the history, which no longer changes
+   */
+  TransactionHistory freezeTransactions() {
+    return transactions.freeze();
+  }
+  /**
+   * Gets an iterator to all transactions of the member, oldest first
+   * @return the iterator to the collection
+   */
+  public Iterator getAllTransactions() {
+    return (transactions.iterator());
+  }
   /**
    * Gets an iterator to a collection of selected transactions
    * @param date the date for which the transactions have to be retrieved
    * @return the iterator to the collection
    */
   public Iterator getTransactions(Calendar date) {
-    List result = new LinkedList();
-    for (Iterator iterator = transactions.iterator(); iterator.hasNext(); ) {
-      Transaction transaction = (Transaction) iterator.next();
-      if (transaction.onDate(date)) {
-        result.add(transaction);
-      }
-    }
-    return (result.iterator());
+    return (transactions.between(date, date).iterator());
+  }
+  /**
+   * Gets an iterator to the transactions of a range of days
+   * @param from the first day of the range
+   * @param to the last day of the range, included
+   * @return the iterator to the collection, oldest first
+   */
+  public Iterator<Transaction> getTransactions(Calendar from, Calendar to) {
+    return (transactions.between(from, to).iterator());
   }
   /**
    * Getter for name
@@ -185,28 +287,99 @@ public class Member implements Serializable {
   public boolean equals(String id) {
     return this.id.equals(id);
   }
+  /*
+   * Reads a member back, also accepting the list of transactions kept by
+   * earlier versions of this class
+   */
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = input.readFields();
+    name = (String) fields.get("name", null);
+    address = (String) fields.get("address", null);
+    phone = (String) fields.get("phone", null);
+    id = (String) fields.get("id", null);
+    booksBorrowed = (List) fields.get("booksBorrowed", null);
+    booksOnHold = (List) fields.get("booksOnHold", null);
+    Object stored = fields.get("transactions", null);
+    if (stored instanceof List) {
+      transactions = new TransactionHistory();
+      for (Object transaction : (List) stored) {
+        transactions.add((Transaction) transaction);
+      }
+    } else {
+      transactions = (TransactionHistory) stored;
+    }
+  }
+  /**
+   * Writes the string form of the member: its details, the titles it has
+   * borrowed and on hold, and its transactions. The member is read with
+   * its lock held (see Library.memberLock()), its history frozen (see
+   * TransactionHistory.freeze()), and written after the lock is released,
+   * so circulation may go on meanwhile.
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    String currentName;
+    String currentAddress;
+    String currentPhone;
+    String[] borrowed;
+    String[] held;
+    TransactionHistory history;
+    Lock memberLock = Library.memberLock(id);
+    memberLock.lock();
+    try {
+      currentName = name;
+      currentAddress = address;
+      currentPhone = phone;
+      borrowed = new String[booksBorrowed.size()];
+      int index = 0;
+      for (Iterator iterator = booksBorrowed.iterator(); iterator.hasNext(); ) {
+        Book book = (Book) iterator.next();
+        borrowed[index++] = book.getTitle();
+      }
+      held = new String[booksOnHold.size()];
+      index = 0;
+      for (Iterator iterator = booksOnHold.iterator(); iterator.hasNext(); ) {
+        Hold hold = (Hold) iterator.next();
+        held[index++] = hold.getBook().getTitle();
+      }
+      history = transactions.freeze();
+    } finally {
+      memberLock.unlock();
+    }
+    output.append("Member name ").append(currentName).append(" address ").append(currentAddress)
+        .append(" id ").append(id).append(" phone ").append(currentPhone);
+    output.append(" borrowed: [");
+    for (String title : borrowed) {
+      output.append(' ').append(title);
+    }
+    output.append("] holds: [");
+    for (String title : held) {
+      output.append(' ').append(title);
+    }
+    output.append("] transactions: [");
+    history.appendTo(output);
+    output.append(']');
+  }
+  /**
+   * Estimates the length of the string form, to size buffers
+   * @return the approximate number of characters
+   */
+  int renderedLength() {
+    return 80 + 24 * (booksBorrowed.size() + booksOnHold.size()) + 40 * transactions.size();
+  }
   /** 
    * String form of the member
   * 
   */
  @Override
   public String toString() {
-    String string = "Member name " + name + " address " + address + " id " + id + " phone " + phone;
-    string += " borrowed: [";
-    for (Iterator iterator = booksBorrowed.iterator(); iterator.hasNext(); ) {
-      Book book = (Book) iterator.next();
-      string += " " + book.getTitle();
-    }
-    string += "] holds: [";
-    for (Iterator iterator = booksOnHold.iterator(); iterator.hasNext(); ) {
-      Hold hold = (Hold) iterator.next();
-      string += " " + hold.getBook().getTitle();
-    }
-    string += "] transactions: [";
-    for (Iterator iterator = transactions.iterator(); iterator.hasNext(); ) {
-      string += (Transaction) iterator.next();
+    StringBuilder string = new StringBuilder(renderedLength());
+    try {
+      appendTo(string);
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
     }
-    string += "]";
-    return string;
+    return string.toString();
   }
 }
\ No newline at end of file
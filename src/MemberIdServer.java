@@ -18,27 +18,65 @@
  * and are not responsible for any loss or damage resulting from its use.  
  */
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
 /**
  * Generates member ids.
+ * Ids are handed out with a single atomic increment. They are reserved in
+ * blocks of BLOCK ids: before the first id of a block is handed out, the
+ * end of the block is written to the file MemberIdMark and forced to disk.
+ * On start the server continues from that mark, so an id given out before
+ * a crash is never given out again, even if the member it was meant for
+ * was never saved; at most one block of ids is skipped.
+ * Branches that merge their members can lease ids instead: each node then
+ * takes ranges of RANGE ids from a lease file all the nodes share, one
+ * line per range naming the node that holds it, and hands out ids from
+ * its range without going back to the file until the range is used up.
  * @author Brahma Dathan and Sarnath Ramnath
  *
  */
 public class MemberIdServer implements Serializable {
-  private  int idCounter;
+  private static final long serialVersionUID = 4893418294435028325L;
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("idCounter", int.class)
+  };
+  private static final String MARK_FILE = "MemberIdMark";
+  private static final int BLOCK = 1000;
+  private static final int RANGE = 10000;
+  private transient volatile Lease lease;
+  private transient File leaseFile;
+  private transient String node;
   private static MemberIdServer server;
+
+  /*
+   * A range of ids and the next id to be handed out of it. Without a lease
+   * file, the range has no end.
+   */
+  private static class Lease {
+    private final AtomicInteger next;
+    private final int end;
+    private volatile int limit;
+
+    private Lease(int next, int end, int limit) {
+      this.next = new AtomicInteger(next);
+      this.end = end;
+      this.limit = limit;
+    }
+  }
   /*
    * Private constructor for singleton pattern
    * 
    */
   private MemberIdServer() {
-    idCounter = 1;
+    start(1);
   }
   /**
    * Supports the singleton pattern
    * 
    * @return the singleton object
    */
-  public static MemberIdServer instance() {
+  public static synchronized MemberIdServer instance() {
     if (server == null) {
       return (server = new MemberIdServer());
     } else {
@@ -46,11 +84,190 @@ public class MemberIdServer implements Serializable {
     }
   }
   /**
-   * Getter for id
+   * Makes the server lease ranges of ids from a file shared by every node,
+   * so that nodes never hand out the same id. A range taken earlier by this
+   * node and not used up is used first.
+   * @param file the lease file
+   * @param node name of this node, recorded with its ranges
+   */
+  public synchronized void useLeases(File file, String node) {
+    leaseFile = file;
+    this.node = node;
+    int[] mark = readMark();
+    if (mark[1] == Integer.MAX_VALUE || mark[0] >= mark[1]) {
+      lease = new Lease(0, 0, 0);
+    } else {
+      lease = new Lease(mark[0], mark[1], mark[0]);
+    }
+  }
+  /**
+   * Getter for id. Only the first id of a block, or of a range, waits for
+   * the files to be written; every other call is one atomic increment.
    * @return id of the member
+   * @throws IllegalStateException if the ids could not be reserved on disk
    */
   public int getId() {
-    return idCounter++;
+    Lease current = lease;
+    int id = current.next.getAndIncrement();
+    if (id >= current.limit) {
+      id = reserve(current, id);
+    }
+    return id;
+  }
+  /**
+   * Returns the id the next member will get, without using it up
+   * @return the next id
+   */
+  int peekId() {
+    return lease.next.get();
+  }
+  /**
+   * Makes sure no id below a given one is handed out; used when loading a
+   * snapshot. Ids never go back, so ids reserved since are not reused.
+   * @param nextId the next id
+   */
+  void restore(int nextId) {
+    advance(nextId);
+  }
+  /**
+   * Makes sure an id that is already in use is not handed out again;
+   * used when replaying the journal
+   * @param id an id in use
+   */
+  void reserve(String id) {
+    try {
+      advance(Integer.parseInt(id) + 1);
+    } catch (NumberFormatException nfe) {
+      // not generated by this server
+    }
+  }
+  /*
+   * Raises the next id to at least a given value. With leases, ids
+   * outside the current range belong to other ranges and are ignored.
+   */
+  private void advance(int nextId) {
+    Lease current = lease;
+    if (nextId > current.end) {
+      return;
+    }
+    int next;
+    do {
+      next = current.next.get();
+    } while (next < nextId && !current.next.compareAndSet(next, nextId));
+  }
+  /*
+   * Writes the end of the block holding an id to disk before the id is
+   * used, leasing a new range first if the id is past the end of its
+   * range. Threads that ran past the end of a block wait here.
+   */
+  private synchronized int reserve(Lease current, int id) {
+    while (id >= current.end) {
+      if (lease == current) {
+        lease = claim();
+      }
+      current = lease;
+      id = current.next.getAndIncrement();
+    }
+    if (id >= current.limit) {
+      int mark = (int) Math.min((long) (id / BLOCK + 1) * BLOCK, current.end);
+      writeMark(mark, current.end);
+      current.limit = mark;
+    }
+    return id;
+  }
+  /*
+   * Takes the next free range from the lease file and records it there.
+   * The file is locked meanwhile, so nodes claiming at the same time get
+   * different ranges. A last line left without its end by a crash is ended
+   * before the new one is appended, so the two are not read as one.
+   */
+  private Lease claim() {
+    int start = 1;
+    try {
+      RandomAccessFile file = new RandomAccessFile(leaseFile, "rw");
+      try {
+        FileChannel channel = file.getChannel();
+        FileLock lock = channel.lock();
+        try {
+          String line;
+          while ((line = file.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length == 3) {
+              try {
+                start = Math.max(start, Integer.parseInt(fields[2]));
+              } catch (NumberFormatException nfe) {
+                throw new IllegalStateException("bad lease " + line + " in " + leaseFile, nfe);
+              }
+            }
+          }
+          long length = file.length();
+          if (length > 0) {
+            file.seek(length - 1);
+            if (file.read() != '\n') {
+              file.write('\n');
+            }
+          }
+          file.write((node + "\t" + start + "\t" + (start + RANGE) + "\n").getBytes("UTF-8"));
+          channel.force(true);
+        } finally {
+          lock.release();
+        }
+      } finally {
+        file.close();
+      }
+    } catch (IOException ioe) {
+      throw new IllegalStateException("could not lease member ids from " + leaseFile, ioe);
+    }
+    return new Lease(start, start + RANGE, start);
+  }
+  /*
+   * Writes the mark and the end of the current range, and forces them to
+   * disk. If they cannot be written, no id of the block may be handed out.
+   */
+  private void writeMark(int mark, int end) {
+    try {
+      RandomAccessFile file = new RandomAccessFile(MARK_FILE, "rw");
+      try {
+        file.writeInt(mark);
+        file.writeInt(end);
+        file.getFD().sync();
+      } finally {
+        file.close();
+      }
+    } catch (IOException ioe) {
+      throw new IllegalStateException("could not reserve member ids in " + MARK_FILE, ioe);
+    }
+  }
+  /*
+   * Reads the mark and the end of the range it belongs to; files written
+   * before ranges were leased only hold the mark
+   */
+  private int[] readMark() {
+    int[] mark = {0, Integer.MAX_VALUE};
+    File file = new File(MARK_FILE);
+    if (file.length() >= 4) {
+      try {
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+          mark[0] = input.readInt();
+          if (file.length() >= 8) {
+            mark[1] = input.readInt();
+          }
+        } finally {
+          input.close();
+        }
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+      }
+    }
+    return mark;
+  }
+  /*
+   * Starts from an id, or from the mark left on disk if that is higher
+   */
+  private void start(int nextId) {
+    int mark = readMark()[0];
+    lease = new Lease(Math.max(nextId, mark), Integer.MAX_VALUE, mark);
   }
   /** 
    * String form of the collection
@@ -58,7 +275,7 @@ public class MemberIdServer implements Serializable {
   */
   @Override
   public String toString() {
-    return ("IdServer" + idCounter);
+    return ("IdServer" + lease.next);
   }
   /**
    * Retrieves the server object
@@ -67,7 +284,14 @@ public class MemberIdServer implements Serializable {
    */
   public static void retrieve(ObjectInputStream input) {
     try {
-      server = (MemberIdServer) input.readObject();
+      MemberIdServer retrieved = (MemberIdServer) input.readObject();
+      synchronized (MemberIdServer.class) {
+        if (server == null) {
+          server = retrieved;
+        } else {
+          server.restore(retrieved.peekId());
+        }
+      }
     } catch(IOException ioe) {
       ioe.printStackTrace();
     } catch(Exception cnfe) {
@@ -80,7 +304,9 @@ public class MemberIdServer implements Serializable {
    */
   private void writeObject(java.io.ObjectOutputStream output) throws IOException {
     try {
-      output.defaultWriteObject();
+      ObjectOutputStream.PutField fields = output.putFields();
+      fields.put("idCounter", peekId());
+      output.writeFields();
       output.writeObject(server);
     } catch(IOException ioe) {
       ioe.printStackTrace();
@@ -92,7 +318,8 @@ public class MemberIdServer implements Serializable {
    */
   private void readObject(java.io.ObjectInputStream input) throws IOException, ClassNotFoundException {
     try {
-      input.defaultReadObject();
+      ObjectInputStream.GetField fields = input.readFields();
+      start(fields.get("idCounter", 1));
       if (server == null) {
         server = (MemberIdServer) input.readObject();
       } else {
@@ -26,7 +26,10 @@ import java.io.*;
  */
 public class MemberList implements Serializable {
   private static final long serialVersionUID = 1L;
-  public List<Member> members = new LinkedList();
+  public Map<String, Member> members = new LinkedHashMap<String, Member>();
+  private transient PrefixIndex names;
+  private transient MappedSnapshot snapshot;
+  private transient int modifications;
   private static MemberList memberList;
   /*
    * Private constructor for singleton pattern
@@ -47,35 +50,151 @@ public class MemberList implements Serializable {
     }
   }
 
-  public Iterator getMembers() {
-      return members.iterator();
+  /**
+   * Returns an iterator to all members in registration order
+   * @return iterator to the collection
+   */
+  public synchronized Iterator getMembers() {
+    materialize();
+    return new ArrayList<Member>(members.values()).iterator();
   }
+  /**
+   * Returns the members in registration order without copying the list or
+   * loading the members of an attached snapshot; see BlockIterator.
+   * Members not loaded are copies read from the snapshot (see
+   * MappedSnapshot.peekMember()).
+   * @return iterator to the members
+   */
+  Iterator<Member> stream() {
+    return new BlockIterator<Member>(this) {
+      MappedSnapshot attached() {
+        return snapshot;
+      }
+
+      int count(MappedSnapshot snapshot) {
+        return snapshot.memberCount();
+      }
 
-//  public Iterator getMembers()
+      Member read(MappedSnapshot snapshot, int position) {
+        return snapshot.peekMember(position);
+      }
+
+      Collection<Member> inMemory() {
+        return members.values();
+      }
+
+      int modifications() {
+        return modifications;
+      }
+
+      String key(Member member) {
+        return member.getId();
+      }
+    };
+  }
   /**
    * Checks whether a member with a given member id exists.
    * @param memberId the id of the member
    * @return true iff member exists
    * 
    */
-  public Member search(String memberId) {
-    for (Iterator iterator = members.iterator(); iterator.hasNext(); ) {
-      Member member = (Member) iterator.next();
-      if (member.getId().equals(memberId)) {
-        return member;
-      }
+  public synchronized Member search(String memberId) {
+    if (memberId == null) {
+      return null;
+    }
+    Member member = members.get(memberId);
+    if (member == null && snapshot != null) {
+      member = snapshot.findMember(memberId);
     }
-    return null;
+    return member;
   }
   /**
    * Inserts a member into the collection
    * @param member the member to be inserted
-   * @return true iff the member could be inserted. Currently always true
+   * @return true iff the member could be inserted; false if the id is already in use
    */
-  public boolean insertMember(Member member) {
-    members.add(member);
+  public synchronized boolean insertMember(Member member) {
+    if (member.getId() == null || search(member.getId()) != null) {
+      return false;
+    }
+    members.put(member.getId(), member);
+    modifications++;
+    if (names != null) {
+      names.add(member.getName());
+    }
     return true;
   }
+  /**
+   * Removes all members; used before loading a snapshot
+   */
+  synchronized void clear() {
+    members.clear();
+    modifications++;
+    names = null;
+    snapshot = null;
+  }
+  /**
+   * Serves the members of a mapped snapshot. They are turned into objects
+   * when first looked up, or all at once when the whole list is needed.
+   * @param snapshot the snapshot, loaded into an empty member list
+   */
+  synchronized void attach(MappedSnapshot snapshot) {
+    this.snapshot = snapshot;
+    modifications++;
+  }
+  /**
+   * Lists the members for a new snapshot without turning the members of
+   * an attached snapshot into objects. Those come first, in registration
+   * order, followed by the members inserted since.
+   * @param inserted list receiving the members not in the attached snapshot
+   * @return the attached snapshot, or null if all members are objects
+   */
+  synchronized MappedSnapshot capture(List<Member> inserted) {
+    inserted.addAll(members.values());
+    return snapshot;
+  }
+  /*
+   * Turns the remaining members of the snapshot into objects. The snapshot
+   * members come first, in registration order, followed by the members
+   * inserted since.
+   */
+  private void materialize() {
+    if (snapshot == null) {
+      return;
+    }
+    Map<String, Member> all = new LinkedHashMap<String, Member>();
+    for (int index = 0; index < snapshot.memberCount(); index++) {
+      Member member = snapshot.getMember(index);
+      all.put(member.getId(), member);
+    }
+    all.putAll(members);
+    members = all;
+    snapshot = null;
+    modifications++;
+  }
+  /**
+   * Completes a prefix of a member name
+   * @param prefix the beginning of the name
+   * @param completions array receiving the matching names
+   * @return the number of names copied into the array
+   */
+  public synchronized int completeName(String prefix, String[] completions) {
+    return names().complete(prefix, completions);
+  }
+  /*
+   * Returns the name index, building it from the members if it does not
+   * exist yet (e.g. after deserialization)
+   */
+  private PrefixIndex names() {
+    if (names == null) {
+      materialize();
+      names = new PrefixIndex();
+      for (Member member : members.values()) {
+        names.add(member.getName());
+      }
+    }
+    return names;
+  }
   /*
    * Supports serialization
    * @param output the stream to be written to
@@ -97,7 +216,7 @@ public class MemberList implements Serializable {
       if (memberList != null) {
         return;
       } else {
-        input.defaultReadObject();
+        readMembers(input.readFields());
         if (memberList == null) {
           memberList = (MemberList) input.readObject();
         } else {
@@ -110,11 +229,67 @@ public class MemberList implements Serializable {
       cnfe.printStackTrace();
     }
   }
+  /*
+   * Restores the members from the serialized fields, also accepting the
+   * list kept by earlier versions of this class
+   * @param fields the serialized fields
+   */
+  private void readMembers(ObjectInputStream.GetField fields) throws IOException {
+    Object stored = fields.get("members", null);
+    if (stored instanceof List) {
+      members = new LinkedHashMap<String, Member>();
+      for (Object object : (List<?>) stored) {
+        Member member = (Member) object;
+        members.put(member.getId(), member);
+      }
+    } else {
+      // the map writeObject() saved from this field
+      @SuppressWarnings("unchecked")
+      Map<String, Member> storedMembers = (Map<String, Member>) stored;
+      members = storedMembers;
+    }
+  }
+  /**
+   * Writes the string form of the collection: that of every member,
+   * separated by commas, between brackets. The members are taken from
+   * stream() and each is read under its own lock, so the collection is
+   * neither locked nor loaded from an attached snapshot meanwhile.
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    output.append('[');
+    boolean first = true;
+    for (Iterator<Member> iterator = stream(); iterator.hasNext(); ) {
+      Member member = iterator.next();
+      if (!first) {
+        output.append(", ");
+      }
+      member.appendTo(output);
+      first = false;
+    }
+    output.append(']');
+  }
   /** String form of the collection
   * 
   */
   @Override
   public String toString() {
-    return members.toString();
+    int length = 2;
+    synchronized (this) {
+      for (Member member : members.values()) {
+        length += 2 + member.renderedLength();
+      }
+      if (snapshot != null) {
+        length += 80 * snapshot.memberCount();
+      }
+    }
+    StringBuilder string = new StringBuilder(length);
+    try {
+      appendTo(string);
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+    return string.toString();
   }
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+/**
+ * A line of the overdue report: a book that was not returned in time, the
+ * member who has it and how late it is.
+ *
+ */
+public class Overdue {
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+  private Book book;
+  private Member borrower;
+  private int daysLate;
+
+  /**
+   * Creates the line for a book
+   * @param book the overdue book
+   * @param borrower the member who borrowed it
+   * @param dueTime time at which the book was due, in milliseconds
+   * @param now the current time, in milliseconds
+   */
+  public Overdue(Book book, Member borrower, long dueTime, long now) {
+    this.book = book;
+    this.borrower = borrower;
+    daysLate = (int) ((now - dueTime + DAY - 1) / DAY);
+  }
+
+  /**
+   * Getter for the book
+   * @return the overdue book
+   */
+  public Book getBook() {
+    return book;
+  }
+
+  /**
+   * Getter for the borrower
+   * @return the member who has the book
+   */
+  public Member getBorrower() {
+    return borrower;
+  }
+
+  /**
+   * Getter for the delay
+   * @return number of days, started ones included, since the book was due
+   */
+  public int getDaysLate() {
+    return daysLate;
+  }
+
+  /**
+   * String form of the line
+   *
+   */
+  @Override
+  public String toString() {
+    return book.getTitle() + "   " + borrower.getName() + "   " + daysLate + " days late";
+  }
+}
@@ -0,0 +1,140 @@
+import java.util.*;
+
+/**
+ * Sorted index of strings supporting type-ahead completion. The strings
+ * are counted in a TreeMap keyed on their lower case form. Completion
+ * reads sorted arrays of the keys and strings instead: the completions of
+ * a prefix are the consecutive keys from the first one not below the
+ * prefix, found by binary search, so a lookup allocates nothing. The
+ * arrays are rebuilt by the first completion after strings were added to
+ * or removed from the index, which costs no more than inserting into a
+ * sorted array would, and lets a whole catalog be added in one go.
+ * The same string may be added several times (e.g. an author with many
+ * books); it stays in the index until it has been removed as often.
+ *
+ */
+public class PrefixIndex {
+  private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+  private String[] keys = new String[0];
+  private String[] texts = new String[0];
+  private int size;
+  private boolean stale;
+
+  /*
+   * A string in the index together with the number of times it was added
+   */
+  private static class Entry {
+    private String text;
+    private int count;
+
+    private Entry(String text) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * Adds a string to the index
+   * @param text the string to be added
+   */
+  public void add(String text) {
+    if (text == null) {
+      return;
+    }
+    String key = text.toLowerCase();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(text);
+      entries.put(key, entry);
+      stale = true;
+    }
+    entry.count++;
+  }
+
+  /**
+   * Removes one occurrence of a string from the index
+   * @param text the string to be removed
+   */
+  public void remove(String text) {
+    if (text == null) {
+      return;
+    }
+    String key = text.toLowerCase();
+    Entry entry = entries.get(key);
+    if (entry != null && --entry.count == 0) {
+      entries.remove(key);
+      stale = true;
+    }
+  }
+
+  /**
+   * Copies the strings starting with the prefix, in alphabetical order,
+   * into the given array. At most completions.length strings are copied,
+   * so the caller can reuse the same array for every keystroke.
+   * @param prefix the prefix typed so far; the case is ignored
+   * @param completions array receiving the completions
+   * @return the number of completions copied
+   */
+  public int complete(String prefix, String[] completions) {
+    if (stale) {
+      rebuild();
+    }
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compare(keys[middle], prefix) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    int found = 0;
+    for (int index = low; index < size && found < completions.length; index++) {
+      if (!keys[index].regionMatches(true, 0, prefix, 0, prefix.length())) {
+        break;
+      }
+      completions[found++] = texts[index];
+    }
+    return found;
+  }
+
+  /*
+   * Copies the keys and strings of the map into the sorted arrays, which
+   * are only reallocated when they are too small
+   */
+  private void rebuild() {
+    if (keys.length < entries.size()) {
+      int capacity = Math.max(entries.size(), keys.length * 2);
+      keys = new String[capacity];
+      texts = new String[capacity];
+    }
+    int index = 0;
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      keys[index] = entry.getKey();
+      texts[index] = entry.getValue().text;
+      index++;
+    }
+    if (index < size) {
+      Arrays.fill(keys, index, size, null);
+      Arrays.fill(texts, index, size, null);
+    }
+    size = index;
+    stale = false;
+  }
+
+  /*
+   * Compares a lower case key with a prefix, ignoring the case of the
+   * prefix: negative if the key sorts before every string starting with
+   * the prefix, zero if it starts with the prefix, positive otherwise
+   */
+  private static int compare(String key, String prefix) {
+    int length = Math.min(key.length(), prefix.length());
+    for (int index = 0; index < length; index++) {
+      int difference = key.charAt(index) - Character.toLowerCase(prefix.charAt(index));
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return key.length() < prefix.length() ? -1 : 0;
+  }
+}
@@ -0,0 +1,551 @@
+import java.util.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+/**
+ * A point-in-time image of the library, captured quickly while the
+ * library is quiescent and then written as a binary snapshot file, which
+ * may happen on a background thread. Books and members not touched since
+ * the previous snapshot was mapped are copied from it while writing. The
+ * file is laid out so that it can be mapped into memory and read in place
+ * (see MappedSnapshot):
+ * <pre>
+ *   header          magic, version, generation, next member id, counts,
+ *                   hash table capacities and section offsets (64 bytes)
+ *   string offsets  position of every string in the string data
+ *   string data     every distinct string once, as length and UTF-8 bytes
+ *   book table      id, title, author and details position of every book
+ *   member table    id, name, address, phone and details position of
+ *                   every member
+ *   book hash       open addressing table from book id to book position
+ *   member hash     open addressing table from member id to member position
+ *   book details    borrower and due time, then the holds (member,
+ *                   expiry time) in queue order
+ *   member details  transactions (type, title, time), borrowed books and
+ *                   holds (book, expiry time) in the member's own order
+ * </pre>
+ * Strings, books and members are referred to by their position; times are
+ * milliseconds since the epoch; all numbers are big-endian.
+ *
+ */
+public class Snapshot {
+  static final int MAGIC = 0x4C42534E;
+  static final short VERSION = 2;
+  static final int NONE = -1;
+  static final int HEADER_SIZE = 64;
+  static final int BOOK_RECORD = 16;
+  static final int MEMBER_RECORD = 20;
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private long generation;
+  private int nextMemberId;
+  private BookImage[] books;
+  private MemberImage[] members;
+  private Book[] bookObjects;
+  private MappedSnapshot mapped;
+  private int[] bookSources;
+  private int[] memberSources;
+  private int[] bookPositions;
+  private int[] memberPositions;
+
+  /**
+   * Captured state of a book
+   */
+  static class BookImage {
+    String id;
+    String title;
+    String author;
+    int borrower;
+    long dueTime;
+    int[] holders;
+    long[] holdExpiry;
+  }
+
+  /**
+   * Captured state of a member
+   */
+  static class MemberImage {
+    String id;
+    String name;
+    String address;
+    String phone;
+    TransactionHistory transactions;
+    int[] borrowed;
+    int[] held;
+    long[] holdExpiry;
+  }
+
+  /*
+   * Created by capture()
+   */
+  private Snapshot() {
+  }
+
+  /**
+   * Checks whether a file holds a binary snapshot, as opposed to the
+   * serialized object graph written by earlier versions
+   * @param file the file to be checked
+   * @return true iff the file starts with the snapshot magic number
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isSnapshot(File file) throws IOException {
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      return input.readInt() == MAGIC;
+    } catch (EOFException eofe) {
+      return false;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Returns the home slot of an id in a hash table
+   * @param id the id
+   * @param capacity capacity of the table, a power of two
+   * @return the slot at which probing starts
+   */
+  static int slot(String id, int capacity) {
+    int hash = id.hashCode() * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & (capacity - 1);
+  }
+
+  /**
+   * Captures the state of the catalog and the members. Only the books and
+   * members that are objects are looked at: the ones still only in an
+   * attached mapped snapshot have not changed since it was written, and
+   * are read from it by write(). Of a book neither on loan nor on hold,
+   * only the reference is kept, its id, title and author never changing.
+   * Transaction histories are shared rather than copied (see
+   * TransactionHistory.freeze()). The capture is thus quick and the
+   * library may change as soon as it returns; the captured state is then
+   * written by write(), possibly on another thread.
+   * @param catalog the books
+   * @param memberList the members
+   * @param generation generation of the snapshot
+   * @param nextMemberId the id the next member will get
+   * @return the captured state
+   */
+  public static Snapshot capture(Catalog catalog, MemberList memberList, long generation, int nextMemberId) {
+    Snapshot snapshot = new Snapshot();
+    snapshot.generation = generation;
+    snapshot.nextMemberId = nextMemberId;
+    List<Book> books = new ArrayList<Book>();
+    Set<String> removed = new HashSet<String>();
+    MappedSnapshot bookSource = catalog.capture(books, removed);
+    List<Member> members = new ArrayList<Member>();
+    MappedSnapshot memberSource = memberList.capture(members);
+    snapshot.mapped = bookSource != null ? bookSource : memberSource;
+    Book[] loadedBooks = snapshot.mapped == null ? new Book[0] : snapshot.mapped.loadedBooks();
+    Member[] loadedMembers = snapshot.mapped == null ? new Member[0] : snapshot.mapped.loadedMembers();
+    snapshot.bookPositions = new int[loadedBooks.length];
+    snapshot.memberPositions = new int[loadedMembers.length];
+    Book[] bookObjects = new Book[loadedBooks.length + books.size()];
+    int[] bookSources = new int[bookObjects.length];
+    Map<Book, Integer> bookIndex = new IdentityHashMap<Book, Integer>();
+    int bookCount = 0;
+    if (bookSource != null) {
+      for (int index = 0; index < loadedBooks.length; index++) {
+        Book book = loadedBooks[index];
+        if (book != null && removed.contains(book.getId())) {
+          snapshot.bookPositions[index] = NONE;
+          continue;
+        }
+        snapshot.bookPositions[index] = bookCount;
+        bookSources[bookCount] = book == null ? index : NONE;
+        bookObjects[bookCount++] = book;
+      }
+    }
+    for (Book book : books) {
+      bookSources[bookCount] = NONE;
+      bookObjects[bookCount++] = book;
+    }
+    for (int index = 0; index < bookCount; index++) {
+      Book book = bookObjects[index];
+      if (book != null && (book.getBorrower() != null || book.hasHold())) {
+        bookIndex.put(book, index);
+      }
+    }
+    Member[] memberObjects = new Member[loadedMembers.length + members.size()];
+    int[] memberSources = new int[memberObjects.length];
+    Map<Member, Integer> memberIndex = new IdentityHashMap<Member, Integer>();
+    int memberCount = 0;
+    if (memberSource != null) {
+      for (int index = 0; index < loadedMembers.length; index++) {
+        Member member = loadedMembers[index];
+        snapshot.memberPositions[index] = memberCount;
+        memberSources[memberCount] = member == null ? index : NONE;
+        memberObjects[memberCount++] = member;
+      }
+    }
+    for (Member member : members) {
+      memberSources[memberCount] = NONE;
+      memberObjects[memberCount++] = member;
+    }
+    for (int index = 0; index < memberCount; index++) {
+      if (memberObjects[index] != null) {
+        memberIndex.put(memberObjects[index], index);
+      }
+    }
+    if (snapshot.mapped != null && bookSource == null) {
+      position(loadedBooks, bookObjects, bookCount, snapshot.bookPositions);
+    }
+    if (snapshot.mapped != null && memberSource == null) {
+      position(loadedMembers, memberObjects, memberCount, snapshot.memberPositions);
+    }
+    snapshot.bookObjects = Arrays.copyOf(bookObjects, bookCount);
+    snapshot.bookSources = Arrays.copyOf(bookSources, bookCount);
+    snapshot.memberSources = Arrays.copyOf(memberSources, memberCount);
+    snapshot.books = new BookImage[bookCount];
+    for (Map.Entry<Book, Integer> entry : bookIndex.entrySet()) {
+      Book book = entry.getKey();
+      BookImage image = new BookImage();
+      image.id = book.getId();
+      image.title = book.getTitle();
+      image.author = book.getAuthor();
+      Integer borrower = memberIndex.get(book.getBorrower());
+      image.borrower = borrower == null ? NONE : borrower;
+      if (borrower != null) {
+        image.dueTime = book.getDueTime();
+      }
+      List<Hold> holds = new ArrayList<Hold>();
+      for (Iterator<?> iterator = book.getHolds(); iterator.hasNext(); ) {
+        Hold hold = (Hold) iterator.next();
+        if (memberIndex.containsKey(hold.getMember())) {
+          holds.add(hold);
+        }
+      }
+      image.holders = new int[holds.size()];
+      image.holdExpiry = new long[holds.size()];
+      for (int position = 0; position < holds.size(); position++) {
+        image.holders[position] = memberIndex.get(holds.get(position).getMember());
+        image.holdExpiry[position] = holds.get(position).getDate().getTimeInMillis();
+      }
+      snapshot.books[entry.getValue()] = image;
+    }
+    snapshot.members = new MemberImage[memberCount];
+    for (int index = 0; index < memberCount; index++) {
+      Member member = memberObjects[index];
+      if (member == null) {
+        continue;
+      }
+      MemberImage image = new MemberImage();
+      image.id = member.getId();
+      image.name = member.getName();
+      image.address = member.getAddress();
+      image.phone = member.getPhone();
+      image.transactions = member.freezeTransactions();
+      List<Integer> borrowed = new ArrayList<Integer>();
+      for (Iterator<?> iterator = member.getBooksIssued(); iterator.hasNext(); ) {
+        Integer book = bookIndex.get(iterator.next());
+        if (book != null) {
+          borrowed.add(book);
+        }
+      }
+      image.borrowed = new int[borrowed.size()];
+      for (int position = 0; position < borrowed.size(); position++) {
+        image.borrowed[position] = borrowed.get(position);
+      }
+      List<Hold> holds = new ArrayList<Hold>();
+      for (Iterator<?> iterator = member.getBooksOnHold(); iterator.hasNext(); ) {
+        Hold hold = (Hold) iterator.next();
+        if (bookIndex.containsKey(hold.getBook())) {
+          holds.add(hold);
+        }
+      }
+      image.held = new int[holds.size()];
+      image.holdExpiry = new long[holds.size()];
+      for (int position = 0; position < holds.size(); position++) {
+        image.held[position] = bookIndex.get(holds.get(position).getBook());
+        image.holdExpiry[position] = holds.get(position).getDate().getTimeInMillis();
+      }
+      snapshot.members[index] = image;
+    }
+    return snapshot;
+  }
+
+  /*
+   * Finds the new positions of the objects of a mapped snapshot whose
+   * collection has since been turned into objects entirely; NONE for the
+   * ones no longer in it
+   */
+  private static <T> void position(T[] loaded, T[] objects, int count, int[] positions) {
+    Map<T, Integer> index = new IdentityHashMap<T, Integer>();
+    for (int position = 0; position < count; position++) {
+      index.put(objects[position], position);
+    }
+    for (int old = 0; old < loaded.length; old++) {
+      Integer position = loaded[old] == null ? null : index.get(loaded[old]);
+      positions[old] = position == null ? NONE : position;
+    }
+  }
+
+  /*
+   * Completes the images: the books neither on loan nor on hold are taken
+   * from their objects, and the books and members that were still only in
+   * the mapped snapshot are read from it, their links renumbered to the
+   * positions of this snapshot
+   */
+  private void resolve() {
+    for (int index = 0; index < books.length; index++) {
+      if (books[index] != null) {
+        continue;
+      }
+      BookImage image = new BookImage();
+      if (bookObjects[index] != null) {
+        image.id = bookObjects[index].getId();
+        image.title = bookObjects[index].getTitle();
+        image.author = bookObjects[index].getAuthor();
+        image.borrower = NONE;
+        image.holders = new int[0];
+        image.holdExpiry = new long[0];
+        books[index] = image;
+        continue;
+      }
+      mapped.describeBook(bookSources[index], image);
+      if (image.borrower != NONE) {
+        image.borrower = memberPositions[image.borrower];
+      }
+      int count = 0;
+      for (int hold = 0; hold < image.holders.length; hold++) {
+        int holder = memberPositions[image.holders[hold]];
+        if (holder != NONE) {
+          image.holders[count] = holder;
+          image.holdExpiry[count++] = image.holdExpiry[hold];
+        }
+      }
+      image.holders = Arrays.copyOf(image.holders, count);
+      image.holdExpiry = Arrays.copyOf(image.holdExpiry, count);
+      books[index] = image;
+    }
+    bookObjects = null;
+    for (int index = 0; index < members.length; index++) {
+      if (members[index] != null) {
+        continue;
+      }
+      MemberImage image = new MemberImage();
+      mapped.describeMember(memberSources[index], image);
+      int count = 0;
+      for (int book = 0; book < image.borrowed.length; book++) {
+        int position = bookPositions[image.borrowed[book]];
+        if (position != NONE) {
+          image.borrowed[count++] = position;
+        }
+      }
+      image.borrowed = Arrays.copyOf(image.borrowed, count);
+      count = 0;
+      for (int hold = 0; hold < image.held.length; hold++) {
+        int position = bookPositions[image.held[hold]];
+        if (position != NONE) {
+          image.held[count] = position;
+          image.holdExpiry[count++] = image.holdExpiry[hold];
+        }
+      }
+      image.held = Arrays.copyOf(image.held, count);
+      image.holdExpiry = Arrays.copyOf(image.holdExpiry, count);
+      members[index] = image;
+    }
+    mapped = null;
+  }
+
+  /**
+   * Getter for the generation
+   * @return generation of the snapshot
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Writes the captured state to a file. The data goes to a temporary file
+   * that replaces the target only once it is completely on disk, so a
+   * failed or interrupted write leaves the previous file intact.
+   * @param file the file to be written
+   * @throws IOException if the file cannot be written
+   */
+  public void write(File file) throws IOException {
+    resolve();
+    Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    List<byte[]> encoded = new ArrayList<byte[]>();
+    long[] bookDetails = new long[books.length];
+    long position = 0;
+    for (int index = 0; index < books.length; index++) {
+      BookImage book = books[index];
+      intern(strings, encoded, book.id);
+      intern(strings, encoded, book.title);
+      intern(strings, encoded, book.author);
+      bookDetails[index] = position;
+      position += 4 + (book.borrower != NONE ? 8 : 0) + 4 + 12L * book.holders.length;
+    }
+    long[] memberDetails = new long[members.length];
+    for (int index = 0; index < members.length; index++) {
+      MemberImage member = members[index];
+      intern(strings, encoded, member.id);
+      intern(strings, encoded, member.name);
+      intern(strings, encoded, member.address);
+      intern(strings, encoded, member.phone);
+      for (int transaction = 0; transaction < member.transactions.size(); transaction++) {
+        intern(strings, encoded, member.transactions.typeAt(transaction));
+        intern(strings, encoded, member.transactions.titleAt(transaction));
+      }
+      memberDetails[index] = position;
+      position += 4 + 16L * member.transactions.size() + 4 + 4L * member.borrowed.length + 4
+          + 12L * member.held.length;
+    }
+    int bookCapacity = capacity(books.length);
+    int memberCapacity = capacity(members.length);
+    long stringOffsets = HEADER_SIZE;
+    long stringData = stringOffsets + 4L * encoded.size();
+    long stringEnd = stringData;
+    for (byte[] bytes : encoded) {
+      stringEnd += 4 + bytes.length;
+    }
+    long bookTable = stringEnd;
+    long memberTable = bookTable + (long) BOOK_RECORD * books.length;
+    long bookHash = memberTable + (long) MEMBER_RECORD * members.length;
+    long memberHash = bookHash + 4L * bookCapacity;
+    long details = memberHash + 4L * memberCapacity;
+    if (details + position > Integer.MAX_VALUE) {
+      throw new IOException("library too large for a snapshot");
+    }
+    File temporary = new File(file.getPath() + ".tmp");
+    FileChannel channel = new FileOutputStream(temporary).getChannel();
+    DataOutputStream output = new DataOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+    try {
+      output.writeInt(MAGIC);
+      output.writeShort(VERSION);
+      output.writeShort(0);
+      output.writeLong(generation);
+      output.writeInt(nextMemberId);
+      output.writeInt(encoded.size());
+      output.writeInt(books.length);
+      output.writeInt(members.length);
+      output.writeInt(bookCapacity);
+      output.writeInt(memberCapacity);
+      output.writeInt((int) stringOffsets);
+      output.writeInt((int) bookTable);
+      output.writeInt((int) memberTable);
+      output.writeInt((int) bookHash);
+      output.writeInt((int) memberHash);
+      output.writeInt(0);
+      long offset = stringData;
+      for (byte[] bytes : encoded) {
+        output.writeInt((int) offset);
+        offset += 4 + bytes.length;
+      }
+      for (byte[] bytes : encoded) {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+      }
+      for (int index = 0; index < books.length; index++) {
+        output.writeInt(strings.get(books[index].id));
+        writeString(output, strings, books[index].title);
+        writeString(output, strings, books[index].author);
+        output.writeInt((int) (details + bookDetails[index]));
+      }
+      for (int index = 0; index < members.length; index++) {
+        output.writeInt(strings.get(members[index].id));
+        writeString(output, strings, members[index].name);
+        writeString(output, strings, members[index].address);
+        writeString(output, strings, members[index].phone);
+        output.writeInt((int) (details + memberDetails[index]));
+      }
+      int[] table = new int[bookCapacity];
+      for (int index = 0; index < books.length; index++) {
+        place(table, books[index].id, index);
+      }
+      writeTable(output, table);
+      table = new int[memberCapacity];
+      for (int index = 0; index < members.length; index++) {
+        place(table, members[index].id, index);
+      }
+      writeTable(output, table);
+      for (BookImage book : books) {
+        output.writeInt(book.borrower);
+        if (book.borrower != NONE) {
+          output.writeLong(book.dueTime);
+        }
+        output.writeInt(book.holders.length);
+        for (int hold = 0; hold < book.holders.length; hold++) {
+          output.writeInt(book.holders[hold]);
+          output.writeLong(book.holdExpiry[hold]);
+        }
+      }
+      for (MemberImage member : members) {
+        output.writeInt(member.transactions.size());
+        for (int transaction = 0; transaction < member.transactions.size(); transaction++) {
+          writeString(output, strings, member.transactions.typeAt(transaction));
+          writeString(output, strings, member.transactions.titleAt(transaction));
+          output.writeLong(member.transactions.timeAt(transaction));
+        }
+        output.writeInt(member.borrowed.length);
+        for (int book : member.borrowed) {
+          output.writeInt(book);
+        }
+        output.writeInt(member.held.length);
+        for (int hold = 0; hold < member.held.length; hold++) {
+          output.writeInt(member.held[hold]);
+          output.writeLong(member.holdExpiry[hold]);
+        }
+      }
+      output.flush();
+      channel.force(false);
+    } finally {
+      output.close();
+    }
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /*
+   * Adds a string to the string table if it is not there yet
+   */
+  private static void intern(Map<String, Integer> strings, List<byte[]> encoded, String string) {
+    if (string != null && !strings.containsKey(string)) {
+      strings.put(string, strings.size());
+      encoded.add(string.getBytes(UTF_8));
+    }
+  }
+
+  /*
+   * Writes the position of a string in the string table, or NONE for null
+   */
+  private static void writeString(DataOutputStream output, Map<String, Integer> strings, String string)
+      throws IOException {
+    output.writeInt(string == null ? NONE : strings.get(string));
+  }
+
+  /*
+   * Capacity of a hash table for the given number of ids: a power of two
+   * at least twice as large
+   */
+  private static int capacity(int count) {
+    int capacity = 1;
+    while (capacity < 2 * count) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /*
+   * Stores position + 1 in the first free slot for the id
+   */
+  private static void place(int[] table, String id, int position) {
+    int slot = slot(id, table.length);
+    while (table[slot] != 0) {
+      slot = (slot + 1) & (table.length - 1);
+    }
+    table[slot] = position + 1;
+  }
+
+  /*
+   * Writes a hash table
+   */
+  private static void writeTable(DataOutputStream output, int[] table) throws IOException {
+    for (int entry : table) {
+      output.writeInt(entry);
+    }
+  }
+}
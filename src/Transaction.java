@@ -27,9 +27,14 @@ import java.io.*;
  */
 public class Transaction implements Serializable {
   private static final long serialVersionUID = 1L;
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("type", String.class),
+    new ObjectStreamField("title", String.class),
+    new ObjectStreamField("date", Calendar.class)
+  };
   private String type;
   private String title;
-  private Calendar date;
+  private long time;
   /**
    * Creates the transaction with a given type and book title.
    * The date is the current date.
@@ -40,8 +45,19 @@ public class Transaction implements Serializable {
   public Transaction (String type, String title) {
     this.type = type;
     this.title = title;
-    date = new GregorianCalendar();
-    date.setTimeInMillis(System.currentTimeMillis());
+    time = LibraryClock.now();
+  }
+  /**
+   * Recreates a transaction that happened at a known time; used when
+   * loading a snapshot
+   * @param type The type of transaction
+   * @param title The title of the book
+   * @param time when the transaction happened, in milliseconds
+   */
+  Transaction (String type, String title, long time) {
+    this.type = type;
+    this.title = title;
+    this.time = time;
   }
   /**
    * Checks whether this transaction is on the given date
@@ -50,9 +66,10 @@ public class Transaction implements Serializable {
    * @return true iff the dates match
    */
   public boolean onDate(Calendar date) {
-    return ((date.get(Calendar.YEAR) == this.date.get(Calendar.YEAR)) &&
-            (date.get(Calendar.MONTH) == this.date.get(Calendar.MONTH)) &&
-            (date.get(Calendar.DATE) == this.date.get(Calendar.DATE)));
+    Calendar calendar = calendar();
+    return ((date.get(Calendar.YEAR) == calendar.get(Calendar.YEAR)) &&
+            (date.get(Calendar.MONTH) == calendar.get(Calendar.MONTH)) &&
+            (date.get(Calendar.DATE) == calendar.get(Calendar.DATE)));
   }
   /**
    * Returns the type field
@@ -68,13 +85,57 @@ public class Transaction implements Serializable {
   public String getTitle() {
     return title;
   }
+  /**
+   * Returns the time of the transaction
+   * @return milliseconds since the epoch
+   */
+  public long getTime() {
+    return time;
+  }
   /**
    * Returns the date as a String
    * @return date with month, date, and year
    */
   public String getDate() {
+    Calendar date = calendar();
     return date.get(Calendar.MONTH) + "/" + date.get(Calendar.DATE) + "/" + date.get(Calendar.YEAR);
   }
+  /*
+   * Returns the time of the transaction as a calendar of the default time zone
+   */
+  private Calendar calendar() {
+    Calendar calendar = new GregorianCalendar();
+    calendar.setTimeInMillis(time);
+    return calendar;
+  }
+  /*
+   * Writes the transaction in the form used by earlier versions, whose
+   * time was a calendar
+   */
+  private void writeObject(ObjectOutputStream output) throws IOException {
+    ObjectOutputStream.PutField fields = output.putFields();
+    fields.put("type", type);
+    fields.put("title", title);
+    fields.put("date", calendar());
+    output.writeFields();
+  }
+  /*
+   * Reads a transaction written by writeObject or by earlier versions
+   */
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField fields = input.readFields();
+    type = (String) fields.get("type", null);
+    title = (String) fields.get("title", null);
+    time = ((Calendar) fields.get("date", null)).getTimeInMillis();
+  }
+  /**
+   * Writes the string form of the transaction
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    output.append(type).append("   ").append(title);
+  }
   /**
    * String form of the transaction
    * 
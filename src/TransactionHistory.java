@@ -0,0 +1,305 @@
+import java.util.*;
+import java.io.*;
+
+/**
+ * The transactions of a member, stored column by column in primitive
+ * arrays: a one-byte code for the type, a reference to the title (the
+ * string the book itself holds, not a copy) and the time in milliseconds.
+ * A transaction costs thirteen bytes or so instead of a Transaction object
+ * with its own calendar; Transaction objects are only created while the
+ * history is being read.
+ * The columns are kept in time order, so the transactions of a day, or of
+ * a range of days, are found by binary search without looking at the rest
+ * of the history.
+ *
+ */
+public class TransactionHistory implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final String[] BUILT_IN = {"Book issued ", "Book returned ", "Book renewed ", "Hold Placed ",
+      "Hold Removed "};
+  private static volatile String[] types = BUILT_IN;
+  private transient byte[] codes = new byte[0];
+  private transient String[] titles = new String[0];
+  private transient long[] times = new long[0];
+  private transient int size;
+  private transient boolean shared;
+
+  /**
+   * Appends a transaction to the history
+   * @param transaction the transaction
+   */
+  public void add(Transaction transaction) {
+    add(transaction.getType(), transaction.getTitle(), transaction.getTime());
+  }
+
+  /**
+   * Appends a transaction to the history. Transactions normally arrive
+   * in time order; one that does not is moved back to its place.
+   * @param type the type of transaction
+   * @param title the title of the book
+   * @param time when the transaction happened, in milliseconds
+   */
+  public void add(String type, String title, long time) {
+    if (size == times.length) {
+      int capacity = Math.max(4, size + (size >> 1));
+      codes = Arrays.copyOf(codes, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      times = Arrays.copyOf(times, capacity);
+      shared = false;
+    }
+    int position = size;
+    if (size > 0 && times[size - 1] > time) {
+      position = after(time);
+      if (shared) {
+        codes = codes.clone();
+        titles = titles.clone();
+        times = times.clone();
+        shared = false;
+      }
+      System.arraycopy(codes, position, codes, position + 1, size - position);
+      System.arraycopy(titles, position, titles, position + 1, size - position);
+      System.arraycopy(times, position, times, position + 1, size - position);
+    }
+    codes[position] = code(type);
+    titles[position] = title;
+    times[position] = time;
+    size++;
+  }
+
+  /**
+   * Returns the number of transactions
+   * @return number of transactions in the history
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the history as it is now, e.g. for a snapshot written later.
+   * The copy shares the columns with this history: appending only writes
+   * past its end, and the columns are copied before a late transaction is
+   * moved into the shared part, so the copy costs nothing up front.
+   * @return a history that no longer changes
+   */
+  TransactionHistory freeze() {
+    TransactionHistory copy = new TransactionHistory();
+    copy.codes = codes;
+    copy.titles = titles;
+    copy.times = times;
+    copy.size = size;
+    copy.shared = true;
+    shared = true;
+    return copy;
+  }
+
+  /**
+   * Returns the type of a transaction
+   * @param index position of the transaction, oldest first
+   * @return the type of transaction
+   */
+  String typeAt(int index) {
+    return type(codes[index]);
+  }
+
+  /**
+   * Returns the title of a transaction
+   * @param index position of the transaction, oldest first
+   * @return the title of the book
+   */
+  String titleAt(int index) {
+    return titles[index];
+  }
+
+  /**
+   * Returns the time of a transaction
+   * @param index position of the transaction, oldest first
+   * @return when the transaction happened, in milliseconds
+   */
+  long timeAt(int index) {
+    return times[index];
+  }
+
+  /**
+   * Returns an iterator over every transaction, oldest first
+   * @return iterator for the transactions
+   */
+  public Iterator<Transaction> iterator() {
+    return new Iterator<Transaction>() {
+      private int next;
+
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      public Transaction next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return get(next++);
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Returns the transactions that happened on the days from one date to
+   * another, both included, the days being those of the dates' time
+   * zones. The result is a copy, so the history may change while it is
+   * being read.
+   * @param from the first day
+   * @param to the last day
+   * @return the transactions of those days, oldest first
+   */
+  public List<Transaction> between(Calendar from, Calendar to) {
+    Calendar start = (Calendar) from.clone();
+    startOfDay(start);
+    Calendar end = (Calendar) to.clone();
+    startOfDay(end);
+    end.add(Calendar.DATE, 1);
+    List<Transaction> result = new ArrayList<Transaction>();
+    for (int index = after(start.getTimeInMillis() - 1); index < size && times[index] < end.getTimeInMillis(); index++) {
+      result.add(get(index));
+    }
+    return result;
+  }
+
+  /**
+   * Writes the string forms of every transaction, oldest first, straight
+   * from the columns, without creating Transaction objects
+   * @param output where the text is written
+   * @throws IOException if the text cannot be written
+   */
+  public void appendTo(Appendable output) throws IOException {
+    for (int index = 0; index < size; index++) {
+      output.append(type(codes[index])).append("   ").append(titles[index]);
+    }
+  }
+
+  /*
+   * Creates the transaction object for a position
+   */
+  private Transaction get(int index) {
+    return new Transaction(type(codes[index]), titles[index], times[index]);
+  }
+
+  /*
+   * Returns the position following the last transaction at or before a time
+   */
+  private int after(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (times[middle] <= time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * Moves a calendar back to midnight
+   */
+  private static void startOfDay(Calendar calendar) {
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+  }
+
+  /**
+   * Returns the code of a transaction type, giving new types the next code.
+   * Types already known are looked up without locking; only registering a
+   * new type does.
+   * @param type the type of transaction
+   * @return its code
+   */
+  static byte code(String type) {
+    int code = find(type);
+    if (code >= 0) {
+      return (byte) code;
+    }
+    synchronized (TransactionHistory.class) {
+      String[] known = types;
+      code = indexOf(known, type);
+      if (code < 0) {
+        if (known.length > Byte.MAX_VALUE) {
+          throw new IllegalArgumentException("too many transaction types");
+        }
+        code = known.length;
+        String[] grown = Arrays.copyOf(known, code + 1);
+        grown[code] = type;
+        types = grown;
+      }
+      return (byte) code;
+    }
+  }
+
+  /**
+   * Looks the code of a transaction type up without adding it. The
+   * constants Member records are matched by identity first.
+   * @param type the type of transaction
+   * @return its code, or -1 if no transaction of that type was ever recorded
+   */
+  static int find(String type) {
+    for (int code = 0; code < BUILT_IN.length; code++) {
+      if (BUILT_IN[code] == type) {
+        return code;
+      }
+    }
+    return indexOf(types, type);
+  }
+
+  /**
+   * Returns the transaction type of a code
+   * @param code the code
+   * @return the type of transaction
+   */
+  static String type(byte code) {
+    return types[code];
+  }
+
+  /*
+   * Returns the position of a type in a table of types, or -1
+   */
+  private static int indexOf(String[] known, String type) {
+    for (int code = 0; code < known.length; code++) {
+      if (type == null ? known[code] == null : type.equals(known[code])) {
+        return code;
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Writes the transactions in order
+   */
+  private void writeObject(ObjectOutputStream output) throws IOException {
+    output.defaultWriteObject();
+    output.writeInt(size);
+    for (int index = 0; index < size; index++) {
+      output.writeObject(type(codes[index]));
+      output.writeObject(titles[index]);
+      output.writeLong(times[index]);
+    }
+  }
+
+  /*
+   * Reads the transactions back into the columns
+   */
+  private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+    input.defaultReadObject();
+    int count = input.readInt();
+    codes = new byte[count];
+    titles = new String[count];
+    times = new long[count];
+    for (int index = 0; index < count; index++) {
+      add((String) input.readObject(), (String) input.readObject(), input.readLong());
+    }
+  }
+}
@@ -18,6 +18,7 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 import java.io.*;
 
@@ -31,6 +32,7 @@ public class UserInterface {
   private static UserInterface userInterface;
   private BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
   private static Library library;
+  private Future<Boolean> pendingSave;
   private static final int EXIT = 0;
   private static final int ADD_MEMBER = 1;
   private static final int ADD_BOOKS = 2;
@@ -198,7 +200,7 @@ public class UserInterface {
     if (result == null) {
       System.out.println("Could not add member");
     }
-    System.out.println(result);
+    print(result);
   }
 
   /**
@@ -237,7 +239,8 @@ public class UserInterface {
     int index2 = 1;
     String memberID;
     HashMap memberMap = new HashMap();
-    for (Member member : library.memberList.members) {
+    for (Iterator<?> iterator = library.getAllMembers(); iterator.hasNext(); ) {
+      Member member = (Member) iterator.next();
       System.out.println(index + ") " + member.name);
       memberMap.put(index, member.id);
       index += 1;
@@ -260,25 +263,44 @@ public class UserInterface {
     } while (true);
 
     HashMap bookMap = new HashMap();
-    for (Book book : library.catalog.books) {
+    for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+      Book book = (Book) iterator.next();
       if (book.borrowedBy == null) {
         System.out.println(index2 + ") " + book.title + " by " + book.author + " id = " + book.id);
         bookMap.put(index2, book.id);
         index2 += 1;
       }
     }
+    List<String> bookIDs = new ArrayList<String>();
     do {
-      String bookID = getToken("Enter book id");
-      result = library.issueBook(memberID, bookID);
-      if (result != null) {
-        System.out.println(result.getTitle() + "   " + result.getDueDate());
-      } else {
-        System.out.println("Book could not be issued.");
-      }
+      bookIDs.add(getToken("Enter book id"));
       if (!yesOrNo("Issue more books to this member?")) {
         break;
       }
     } while (true);
+    int[] results = library.issueBooks(memberID, bookIDs);
+    Map<String, Book> issued = booksOf(memberID);
+    for (int bookIndex = 0; bookIndex < results.length; bookIndex++) {
+      result = issued.get(bookIDs.get(bookIndex));
+      if (results[bookIndex] == Library.OPERATION_COMPLETED && result != null) {
+        System.out.println(result.getTitle() + "   " + result.getDueDate());
+      } else {
+        System.out.println("Book " + bookIDs.get(bookIndex) + " could not be issued.");
+      }
+    }
+  }
+
+  /*
+   * Returns the books a member has, by id
+   */
+  private Map<String, Book> booksOf(String memberID) {
+    Map<String, Book> books = new HashMap<String, Book>();
+    Iterator<?> iterator = library.getBooks(memberID);
+    while (iterator != null && iterator.hasNext()) {
+      Book book = (Book) iterator.next();
+      books.put(book.getId(), book);
+    }
+    return books;
   }
 
   /**
@@ -293,7 +315,8 @@ public class UserInterface {
     String memberID;
     String bookID;
     HashMap memberMap = new HashMap();
-    for (Member member : library.memberList.members) {
+    for (Iterator<?> iterator = library.getAllMembers(); iterator.hasNext(); ) {
+      Member member = (Member) iterator.next();
       System.out.println(index + ") " + member.name);
       memberMap.put(index, member.id);
       index += 1;
@@ -317,9 +340,11 @@ public class UserInterface {
     } while (true);
 
     HashMap bookMap = new HashMap();
+    List<String> bookIDs = new ArrayList<String>();
     do {
       index2 = 1;
-      for (Book book : library.catalog.books) {
+      for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+        Book book = (Book) iterator.next();
         if (book.borrowedBy == null) {
         } else if (book.borrowedBy.equals(memberID)) {
           System.out.println(index2 + ") " + book.title + " by " + book.author);
@@ -330,23 +355,30 @@ public class UserInterface {
       }
       String sequenceNumber = getToken("Enter book sequence number, or -1 to quit.");
       if (sequenceNumber.equals("-1")) {
-        return;
+        break;
       }
       try {
         bookID = (String) bookMap.get(Integer.parseInt(sequenceNumber));
       } catch (NumberFormatException exception) {
         bookID = null;
       }
-      result = library.renewBook(bookID, memberID);
-      if (result == null) {
-        System.out.println("That book is not renewable because there is a hold on it!");
-      } else {
-        System.out.println(result.getTitle() + " " + result.getDueDate());
-      }
+      bookIDs.add(bookID);
       if (!yesOrNo("Renew more books?")) {
         break;
       }
     } while (true);
+    int[] results = library.renewBooks(memberID, bookIDs);
+    Map<String, Book> renewed = booksOf(memberID);
+    for (int bookIndex = 0; bookIndex < results.length; bookIndex++) {
+      result = renewed.get(bookIDs.get(bookIndex));
+      if (results[bookIndex] == Library.OPERATION_COMPLETED && result != null) {
+        System.out.println(result.getTitle() + " " + result.getDueDate());
+      } else if (results[bookIndex] == Library.BOOK_HAS_HOLD) {
+        System.out.println("That book is not renewable because there is a hold on it!");
+      } else {
+        System.out.println("Book " + bookIDs.get(bookIndex) + " could not be renewed.");
+      }
+    }
   }
 
   /**
@@ -395,7 +427,8 @@ public class UserInterface {
     String bookID;
     HashMap bookMap = new HashMap();
     do {
-      for (Book book : library.catalog.books) {
+      for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+        Book book = (Book) iterator.next();
         if (!book.hasHold() && book.borrowedBy == null) {
           System.out.println(index + ") " + book.title + " by " + book.author);
           bookMap.put(index, book.id);
@@ -450,7 +483,8 @@ public class UserInterface {
     String bookID;
     HashMap memberMap = new HashMap();
     HashMap bookMap = new HashMap();
-    for (Member member : library.memberList.members) {
+    for (Iterator<?> iterator = library.getAllMembers(); iterator.hasNext(); ) {
+      Member member = (Member) iterator.next();
       System.out.println(memberIndex + ") " + member.name);
       memberMap.put(memberIndex, member.id);
       memberIndex += 1;
@@ -473,7 +507,8 @@ public class UserInterface {
       }
     } while (true);
 
-    for (Book book : library.catalog.books) {
+    for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+      Book book = (Book) iterator.next();
       if (book.borrowedBy == null) {
       } else {
         //System.out.println(bookIndex + ") " + book.title + " by " + book.author);
@@ -522,7 +557,8 @@ public class UserInterface {
     String bookID;
     HashMap memberMap = new HashMap();
     HashMap bookMap = new HashMap();
-    for (Member member : library.memberList.members) {
+    for (Iterator<?> iterator = library.getAllMembers(); iterator.hasNext(); ) {
+      Member member = (Member) iterator.next();
       System.out.println(memberIndex + ") " + member.name);
       memberMap.put(memberIndex, member.id);
       memberIndex += 1;
@@ -547,7 +583,8 @@ public class UserInterface {
 
     do {
 
-      for (Book book : library.catalog.books) {
+      for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+        Book book = (Book) iterator.next();
         if (!(book.hasHold())) {
 
         } else if (book.hasHold()) {
@@ -595,7 +632,8 @@ public class UserInterface {
     Member result;
     HashMap bookMap = new HashMap();
     int bookIndex = 1;
-    for (Book book : library.catalog.books) {
+    for (Iterator<?> iterator = library.getAllBooks(); iterator.hasNext(); ) {
+      Book book = (Book) iterator.next();
       if (book.hasHold()) {
       } else {
         System.out.println(bookIndex + ") " + book.title + " by " + book.author);
@@ -607,7 +645,7 @@ public class UserInterface {
       String bookID = getToken("Enter book id");
       result = library.processHold(bookID);
       if (result != null) {
-        System.out.println(result);
+        print(result);
       } else {
         System.out.println("No valid holds left");
       }
@@ -627,7 +665,8 @@ public class UserInterface {
     int index = 1;
     String memberID;
     HashMap memberMap = new HashMap();
-    for (Member member : library.memberList.members) {
+    for (Iterator<?> iterator = library.getAllMembers(); iterator.hasNext(); ) {
+      Member member = (Member) iterator.next();
       System.out.println(index + ") " + member.name);
       memberMap.put(index, member.id);
       index += 1;
@@ -661,12 +700,54 @@ public class UserInterface {
     }
   }
 
+  /*
+   * Prints a member through a buffer, without building its string form
+   */
+  private void print(Member member) {
+    if (member == null) {
+      System.out.println(member);
+      return;
+    }
+    Writer output = new BufferedWriter(new OutputStreamWriter(System.out));
+    try {
+      member.appendTo(output);
+      output.write(System.lineSeparator());
+      output.flush();
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+  }
+
   /**
    * Method to be called for saving the Library object.
-   * Uses the appropriate Library method for saving.
+   * Starts a background save so the desk can keep working; the outcome is
+   * reported before the next save or retrieval, or on exit.
    */
   private void save() {
-    if (library.save()) {
+    finishSave();
+    pendingSave = Library.saveInBackground();
+    System.out.println(" The library is being saved in the file LibraryData \n");
+  }
+
+  /**
+   * Waits for the background save, if any, and reports its outcome.
+   */
+  private void finishSave() {
+    if (pendingSave == null) {
+      return;
+    }
+    boolean saved;
+    try {
+      saved = pendingSave.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      saved = false;
+    } catch (ExecutionException ee) {
+      ee.printStackTrace();
+      saved = false;
+    }
+    pendingSave = null;
+    if (saved) {
       System.out.println(" The library has been successfully saved in the file LibraryData \n");
     } else {
       System.out.println(" There has been an error in saving \n");
@@ -678,6 +759,7 @@ public class UserInterface {
    * Uses the appropriate Library method for retrieval.
    */
   private void retrieve() {
+    finishSave();
     try {
       Library tempLibrary = Library.retrieve();
       if (tempLibrary != null) {
@@ -742,14 +824,89 @@ public class UserInterface {
           break;
       }
     }
+    finishSave();
+  }
+
+  /**
+   * Runs the commands of a file, or of standard input if the name is -,
+   * without prompting; see BatchProcessor for their format. Saved data is
+   * used if there is any.
+   *
+   * @param source name of the command file
+   */
+  private static void batch(String source) {
+    PrintWriter output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+    try {
+      if (new File("LibraryData").exists()) {
+        library = Library.retrieve();
+      }
+      if (library == null) {
+        library = Library.instance();
+      }
+      BufferedReader input = source.equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+          : new BufferedReader(new FileReader(source));
+      try {
+        new BatchProcessor(library, output).process(input);
+      } finally {
+        input.close();
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+    output.flush();
+  }
+
+  /**
+   * Serves the library to terminals on the local machine until standard
+   * input is closed or reads quit; see LibraryServer. Saved data is used if
+   * there is any.
+   *
+   * @param port the TCP port to listen on
+   */
+  private static void serve(int port) {
+    if (new File("LibraryData").exists()) {
+      library = Library.retrieve();
+    }
+    if (library == null) {
+      library = Library.instance();
+    }
+    LibraryServer server = new LibraryServer(library);
+    try {
+      System.out.println("Serving the library on port " + server.start(port) + "; enter quit to stop");
+      BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+      String line;
+      while ((line = input.readLine()) != null && !line.trim().equalsIgnoreCase("quit")) {
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+    server.stop();
   }
 
   /**
-   * The method to start the application. Simply calls process().
+   * The method to start the application. Simply calls process(), or
+   * runs a command file when started with -batch [file], or serves the
+   * library over the network when started with -serve port. With -lease,
+   * member ids are leased from a file shared with other branches.
    *
-   * @param args not used
+   * @param args optionally -lease followed by the lease file and the name of
+   * this branch; then -batch, optionally followed by the command file,
+   * -serve followed by the port, or nothing for the interactive interface
    */
   public static void main(String[] args) {
+    int next = 0;
+    if (args.length > 2 && args[0].equals("-lease")) {
+      MemberIdServer.instance().useLeases(new File(args[1]), args[2]);
+      next = 3;
+    }
+    if (args.length > next && args[next].equals("-batch")) {
+      batch(args.length > next + 1 ? args[next + 1] : "-");
+      return;
+    }
+    if (args.length > next + 1 && args[next].equals("-serve")) {
+      serve(Integer.parseInt(args[next + 1]));
+      return;
+    }
     UserInterface.instance().process();
   }
 }
\ No newline at end of file